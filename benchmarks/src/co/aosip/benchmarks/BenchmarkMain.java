@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the hardware I/O benchmarks on the host and writes the results as
+ * JSON, so they can be compared across releases.
+ *
+ * Usage: hardware.aosip.benchmarks [results.json [benchmark regex]]
+ *
+ * The GC profiler is always on, its gc.alloc.rate.norm column is the
+ * number of bytes allocated per call.
+ */
+public final class BenchmarkMain {
+    private static final String DEFAULT_RESULTS = "hardware-aosip-benchmarks.json";
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final String results = args.length > 0 ? args[0] : DEFAULT_RESULTS;
+        final String include = args.length > 1 ? args[1]
+                : BenchmarkMain.class.getPackage().getName().replace(".", "\\.") + "\\..*";
+
+        final Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results)
+                .build();
+        new Runner(options).run();
+    }
+}
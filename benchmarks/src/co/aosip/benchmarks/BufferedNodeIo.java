@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * The BufferedReader and BufferedWriter node I/O FileUtils used before,
+ * kept as the baseline to compare against
+ */
+final class BufferedNodeIo {
+
+    private BufferedNodeIo() {
+    }
+
+    static String readOneLine(String fileName) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName), 512)) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static int readInt(String fileName, int defValue) {
+        final String line = readOneLine(fileName);
+        if (line == null) {
+            return defValue;
+        }
+        try {
+            return Integer.parseInt(line.trim());
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    static boolean writeLine(String fileName, String value) {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
+            writer.write(value);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.benchmarks;
+
+import co.aosip.hwcontrollers.util.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileUtils against regular files on tmpfs, which are opened per call,
+ * next to the BufferedReader/BufferedWriter code it replaced
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileUtilsBenchmark {
+    private File mDir;
+    private String mLineNode;
+    private String mIntNode;
+    private String mWriteNode;
+    private int mValue;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = Fixtures.createDir("fileutils");
+        mLineNode = Fixtures.createNode(mDir, "display_mode", "vivid\n");
+        mIntNode = Fixtures.createNode(mDir, "brightness", "255\n");
+        mWriteNode = Fixtures.createNode(mDir, "enable", "0\n");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixtures.delete(mDir);
+    }
+
+    @Benchmark
+    public String readOneLine() {
+        return FileUtils.readOneLine(mLineNode);
+    }
+
+    @Benchmark
+    public String readOneLineBuffered() {
+        return BufferedNodeIo.readOneLine(mLineNode);
+    }
+
+    @Benchmark
+    public int readInt() {
+        return FileUtils.readInt(mIntNode, -1);
+    }
+
+    @Benchmark
+    public int readIntBuffered() {
+        return BufferedNodeIo.readInt(mIntNode, -1);
+    }
+
+    @Benchmark
+    public boolean writeLine() {
+        return FileUtils.writeLine(mWriteNode, (mValue++ & 1) != 0 ? "1" : "0");
+    }
+
+    @Benchmark
+    public boolean writeInt() {
+        return FileUtils.writeInt(mWriteNode, mValue++ & 0xff);
+    }
+
+    @Benchmark
+    public boolean writeLineBuffered() {
+        return BufferedNodeIo.writeLine(mWriteNode, String.valueOf(mValue++ & 0xff));
+    }
+}
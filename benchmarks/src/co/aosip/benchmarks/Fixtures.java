@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Node fixtures for the benchmarks. They live on tmpfs where there is one,
+ * so the numbers measure the I/O path and not the disk.
+ */
+final class Fixtures {
+    private static final File SHM = new File("/dev/shm");
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a new empty directory for one benchmark's nodes
+     */
+    static File createDir(String name) throws IOException {
+        final File parent = SHM.isDirectory() && SHM.canWrite()
+                ? SHM : new File(System.getProperty("java.io.tmpdir"));
+        return Files.createTempDirectory(parent.toPath(), "hwbench-" + name).toFile();
+    }
+
+    /**
+     * Creates a node holding the given contents
+     *
+     * @return the node's path
+     */
+    static String createNode(File dir, String name, String contents) throws IOException {
+        final File node = new File(dir, name);
+        Files.write(node.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return node.getPath();
+    }
+
+    static void delete(File dir) {
+        final File[] nodes = dir.listFiles();
+        if (nodes != null) {
+            for (File node : nodes) {
+                node.delete();
+            }
+        }
+        dir.delete();
+    }
+}
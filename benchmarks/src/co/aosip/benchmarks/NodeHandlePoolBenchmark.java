@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.benchmarks;
+
+import co.aosip.hwcontrollers.util.FileUtils;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileUtils against a procfs node, which goes through the NodeHandlePool,
+ * next to the BufferedReader code that opened the node on every read.
+ * Only reads, procfs nodes are not writable without root.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeHandlePoolBenchmark {
+    // Present and world readable on any Linux
+    private static final String NODE = "/proc/sys/kernel/pid_max";
+
+    @Setup
+    public void setUp() {
+        if (!new File(NODE).canRead()) {
+            throw new IllegalStateException(NODE + " is not readable");
+        }
+    }
+
+    @Benchmark
+    public String readOneLine() {
+        return FileUtils.readOneLine(NODE);
+    }
+
+    @Benchmark
+    public String readOneLineBuffered() {
+        return BufferedNodeIo.readOneLine(NODE);
+    }
+
+    @Benchmark
+    public int readInt() {
+        return FileUtils.readInt(NODE, -1);
+    }
+
+    @Benchmark
+    public int readIntBuffered() {
+        return BufferedNodeIo.readInt(NODE, -1);
+    }
+}
@@ -26,9 +26,11 @@ import android.Manifest;
 public class Intent {
 
     /**
-     * Broadcast action: Perform any initialization required for aosip hardware services.
-     * Runs when the service receives the signal the device has booted, but
-     * should happen before {@link android.content.Intent#ACTION_BOOT_COMPLETED}.
+     * Broadcast action: aosip hardware services have been initialized.
+     * Sent once the service has restored what persisted hardware state it
+     * can after the device has booted. The features it restored are listed
+     * in {@link #EXTRA_RESTORED_FEATURES}; receivers have to reapply the
+     * state of every other feature they manage.
      *
      * Requires {@link android.Manifest.permission#DEVICE_HARDWARE_ACCESS}.
      * @hide
@@ -36,6 +38,14 @@ public class Intent {
     public static final String ACTION_INITIALIZE_DEVICE_HARDWARE =
             "android.intent.action.INITIALIZE_DEVICE_HARDWARE";
 
+    /**
+     * Int extra of {@link #ACTION_INITIALIZE_DEVICE_HARDWARE}: the
+     * DeviceHardwareManager feature flags whose state the service restored.
+     * @hide
+     */
+    public static final String EXTRA_RESTORED_FEATURES =
+            "aosip.intent.extra.RESTORED_FEATURES";
+
     /**
      * Broadcast action: notify the system that the user has performed a gesture on the screen
      * to launch the camera. Broadcast should be protected to receivers holding the
@@ -19,24 +19,45 @@ package aosip.hardware;
 
 import android.content.Context;
 import android.hidl.base.V1_0.IBase;
+import android.os.DeadObjectException;
 import android.os.IBinder;
+import android.os.IHwBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.view.KeyEvent;
 
 import aosip.content.HardwareContext;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.lang.IllegalArgumentException;
 import java.lang.reflect.Field;
-import java.util.Arrays;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 
 import vendor.aosip.displayengine.V1_0.IDisplayModes;
 import vendor.aosip.touch.V1_0.IFingerprintNavigation;
@@ -56,13 +77,68 @@ public final class DeviceHardwareManager {
 
     private final ArrayMap<String, String> mDisplayModeMappings = new ArrayMap<String, String>();
     private final boolean mFilterDisplayModes;
+    // Compiled from the above the first time the hal's mode list is seen
+    private volatile DisplayModeRemapTable mRemapTable;
 
     private Context mContext;
-    private static IDeviceHardwareService sService;
-    private static DeviceHardwareManager sDeviceHardwareManagerInstance;
+    private static volatile IDeviceHardwareService sService;
+    private static volatile DeviceHardwareManager sDeviceHardwareManagerInstance;
+
+    private static final long ASYNC_KEEP_ALIVE_SECONDS = 10;
+    private static Executor sAsyncExecutor;
+
+    private final ArrayMap<StateListener, Executor> mStateListeners =
+            new ArrayMap<StateListener, Executor>();
+    // Keeps the state callback registered while tables are cached
+    @GuardedBy("mStateListeners")
+    private boolean mTablesNeedCallback;
+
+    // Remapped display modes and gestures, built on first use and dropped
+    // when the service reports a change of the lists, the service restarts
+    // or the hal dies
+    private final Object mTableLock = new Object();
+    @GuardedBy("mTableLock")
+    private int mTableEpoch;
+    private volatile Table<DisplayMode> mDisplayModeTable;
+    private volatile Table<TouchscreenGesture> mGestureTable;
+
+    // How long calls wait for a hal that is still being looked up, counted
+    // from the start of the lookup, after that they use the service
+    private static final long HIDL_WAIT_MS = 100;
+    // Upper bound for the initial discovery of all hals
+    private static final long HIDL_DISCOVERY_TIMEOUT_MS = 5000;
+    // Re-probe interval for missing hals, doubled after every miss
+    private static final long HIDL_MIN_BACKOFF_MS = 5 * 1000;
+    private static final long HIDL_MAX_BACKOFF_MS = 10 * 60 * 1000;
+    private static ScheduledThreadPoolExecutor sDiscoveryExecutor;
+    // Only runs short, non-blocking work like timeouts, so they fire on time
+    // even while every lookup is stuck
+    private static ScheduledThreadPoolExecutor sTimerExecutor;
+    private static ScheduledThreadPoolExecutor sReconnectExecutor;
 
-    // HIDL hals
-    private HashMap<Integer, IBase> mHIDLMap = new HashMap<Integer, IBase>();
+    // HIDL hals, indexed by feature ordinal. An entry is null until probed,
+    // the future of the probe while one is running, and then either the hal
+    // or a HIDLAbsent telling when to look again.
+    private final AtomicReferenceArray<Object> mHIDLHandles =
+            new AtomicReferenceArray<Object>(FeatureRegistry.MAX_FEATURES);
+    private final CompletableFuture<Void> mHIDLReady = new CompletableFuture<Void>();
+
+    // Reconnects after a hal or the service died
+    private static final int MAX_CALL_RETRIES = 1;
+    private static final long RECONNECT_WAIT_MS = 500;
+    private static final long SERVICE_RECONNECT_MIN_DELAY_MS = 100;
+    private static final long SERVICE_RECONNECT_MAX_DELAY_MS = 2000;
+    private static final long SERVICE_RECONNECT_TIMEOUT_MS = 30 * 1000;
+    private static volatile CompletableFuture<IDeviceHardwareService> sServiceReconnect;
+    // Async results still expected from the service, failed if it dies
+    private static final long RESULT_TIMEOUT_MS = 10 * 1000;
+    private static final Set<ResultFuture> sPendingResults =
+            Collections.newSetFromMap(new ConcurrentHashMap<ResultFuture, Boolean>());
+    private static final ReconnectStats sServiceReconnects = new ReconnectStats();
+    private final ReconnectStats mHIDLReconnects = new ReconnectStats();
+    // When each hal died, 0 while it is alive
+    private final AtomicLongArray mHIDLDiedAt =
+            new AtomicLongArray(FeatureRegistry.MAX_FEATURES);
 
     /**
      * DisplayEngine (DisplayModes)
@@ -80,7 +156,7 @@ public final class DeviceHardwareManager {
      * Alert Slider
      */
     @VisibleForTesting
-    public static final int FEATURE_ALERT_SLIDER = 0x3;
+    public static final int FEATURE_ALERT_SLIDER = 0x8;
 
     /**
      * Touchscreen gesture
@@ -88,9 +164,10 @@ public final class DeviceHardwareManager {
     @VisibleForTesting
     public static final int FEATURE_TOUCHSCREEN_GESTURES = 0x4;
 
-    private static final List<Integer> BOOLEAN_FEATURES = Arrays.asList(
-        FEATURE_FINGERPRINT_NAVIGATION
-    );
+    // Features that may be backed by a HIDL hal
+    private static final int HIDL_FEATURES = FEATURE_DISPLAY_MODES
+            | FEATURE_FINGERPRINT_NAVIGATION
+            | FEATURE_TOUCHSCREEN_GESTURES;
 
     /**
      * @hide to prevent subclassing from outside of the framework
@@ -103,6 +180,7 @@ public final class DeviceHardwareManager {
             mContext = context;
         }
         sService = getService();
+        startHIDLDiscovery();
 
         if (context.getPackageManager().hasSystemFeature(
                 HardwareContext.Features.HARDWARE_AOSIP) && !checkService()) {
@@ -131,23 +209,175 @@ public final class DeviceHardwareManager {
      * @return {@link DeviceHardwareManager}
      */
     public static DeviceHardwareManager getInstance(Context context) {
-        if (sDeviceHardwareManagerInstance == null) {
-            sDeviceHardwareManagerInstance = new DeviceHardwareManager(context);
+        DeviceHardwareManager instance = sDeviceHardwareManagerInstance;
+        if (instance == null) {
+            synchronized (DeviceHardwareManager.class) {
+                instance = sDeviceHardwareManagerInstance;
+                if (instance == null) {
+                    instance = new DeviceHardwareManager(context);
+                    sDeviceHardwareManagerInstance = instance;
+                }
+            }
         }
-        return sDeviceHardwareManagerInstance;
+        return instance;
     }
 
     /** @hide */
     public static IDeviceHardwareService getService() {
-        if (sService != null) {
-            return sService;
+        IDeviceHardwareService service = sService;
+        if (service != null) {
+            return service;
         }
-        IBinder b = ServiceManager.getService(HardwareContext.DEVICE_HARDWARE_SERVICE);
-        if (b != null) {
-            sService = IDeviceHardwareService.Stub.asInterface(b);
-            return sService;
+        synchronized (DeviceHardwareManager.class) {
+            if (sService != null) {
+                return sService;
+            }
+            IBinder b = ServiceManager.getService(HardwareContext.DEVICE_HARDWARE_SERVICE);
+            if (b == null) {
+                return null;
+            }
+            service = IDeviceHardwareService.Stub.asInterface(b);
+            try {
+                b.linkToDeath(new ServiceDeathRecipient(service), 0);
+            } catch (RemoteException e) {
+                // Died before we got to use it
+                return null;
+            }
+            sService = service;
+            return service;
+        }
+    }
+
+    private static final class ServiceDeathRecipient implements IBinder.DeathRecipient {
+        private final IDeviceHardwareService mService;
+
+        ServiceDeathRecipient(IDeviceHardwareService service) {
+            mService = service;
+        }
+
+        @Override
+        public void binderDied() {
+            onServiceDied(mService);
+        }
+    }
+
+    /**
+     * Drops the given service if it is still the current one and starts
+     * looking for its replacement in the background
+     */
+    private static void onServiceDied(IDeviceHardwareService service) {
+        final CompletableFuture<IDeviceHardwareService> reconnect;
+        final long diedAt = SystemClock.uptimeMillis();
+        synchronized (DeviceHardwareManager.class) {
+            if (sService != service) {
+                return;
+            }
+            sService = null;
+            reconnect = new CompletableFuture<IDeviceHardwareService>();
+            sServiceReconnect = reconnect;
+        }
+        Log.w(TAG, "DeviceHardwareService died, reconnecting");
+        for (ResultFuture result : sPendingResults) {
+            result.complete(false);
+        }
+
+        getReconnectExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long delay = SERVICE_RECONNECT_MIN_DELAY_MS;
+                IDeviceHardwareService service = getService();
+                while (service == null
+                        && SystemClock.uptimeMillis() - diedAt < SERVICE_RECONNECT_TIMEOUT_MS) {
+                    SystemClock.sleep(delay);
+                    delay = Math.min(delay * 2, SERVICE_RECONNECT_MAX_DELAY_MS);
+                    service = getService();
+                }
+                reconnect.complete(service);
+                if (service == null) {
+                    Log.w(TAG, "DeviceHardwareService did not come back in "
+                            + SERVICE_RECONNECT_TIMEOUT_MS + "ms, giving up for now");
+                    return;
+                }
+                final long recoveryMs = SystemClock.uptimeMillis() - diedAt;
+                final int count = sServiceReconnects.record(recoveryMs);
+                Log.i(TAG, "Reconnected to DeviceHardwareService after " + recoveryMs
+                        + "ms (reconnect #" + count + ")");
+                final DeviceHardwareManager instance = sDeviceHardwareManagerInstance;
+                if (instance != null) {
+                    instance.onServiceReconnected();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits up to the given time for a running reconnect to the service
+     */
+    private static void awaitServiceReconnect(long timeoutMs) {
+        final CompletableFuture<IDeviceHardwareService> reconnect = sServiceReconnect;
+        if (reconnect == null) {
+            return;
+        }
+        try {
+            reconnect.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Not back yet, the caller gives up
+        }
+    }
+
+    /**
+     * A call against the hal of a feature or, without one, against the service
+     */
+    private abstract static class HardwareCall<T> {
+        T hidl(IBase hal) throws RemoteException {
+            throw new UnsupportedOperationException();
+        }
+
+        abstract T service(IDeviceHardwareService service) throws RemoteException;
+    }
+
+    /**
+     * Runs the call against the feature's hal if there is one, else against
+     * the service. If the hal or the service died under the call, it is
+     * retried once against the replacement.
+     *
+     * @return the call's result, or the fallback if it could not be made
+     */
+    private <T> T call(int feature, HardwareCall<T> call, T fallback) {
+        for (int attempt = 0; ; attempt++) {
+            final IBase hal = getHIDL(feature);
+            final IDeviceHardwareService service = hal == null && checkService() ? sService : null;
+            if (hal == null && service == null) {
+                return fallback;
+            }
+            try {
+                return hal != null ? call.hidl(hal) : call.service(service);
+            } catch (RemoteException e) {
+                if (hal != null) {
+                    // The lookup started here is what the retry waits for
+                    onHIDLDied(feature, hal);
+                } else if (e instanceof DeadObjectException
+                        || !service.asBinder().isBinderAlive()) {
+                    onServiceDied(service);
+                    awaitServiceReconnect(RECONNECT_WAIT_MS);
+                } else {
+                    return fallback;
+                }
+                if (attempt >= MAX_CALL_RETRIES) {
+                    Log.w(TAG, "Remote call failed after " + (attempt + 1) + " attempts", e);
+                    return fallback;
+                }
+            }
         }
-        return null;
+    }
+
+    /**
+     * Runs the call against the service, see {@link #call}
+     */
+    private <T> T callService(HardwareCall<T> call, T fallback) {
+        return call(0, call, fallback);
     }
 
     /**
@@ -162,20 +392,284 @@ public final class DeviceHardwareManager {
     }
 
     private boolean isSupportedHIDL(int feature) {
-        if (!mHIDLMap.containsKey(feature)) {
-            mHIDLMap.put(feature, getHIDLService(feature));
+        return getHIDL(feature) != null;
+    }
+
+    private IBase getHIDL(int feature) {
+        final int ordinal = FeatureRegistry.ordinal(feature);
+        if (ordinal < 0 || (HIDL_FEATURES & feature) == 0) {
+            return null;
         }
-        return mHIDLMap.get(feature) != null;
+        Object handle = mHIDLHandles.get(ordinal);
+        if (handle instanceof IBase) {
+            return (IBase) handle;
+        }
+        if (handle instanceof HIDLAbsent) {
+            final HIDLAbsent absent = (HIDLAbsent) handle;
+            if (SystemClock.uptimeMillis() < absent.mRetryAt) {
+                return null;
+            }
+            handle = startHIDLProbe(feature, absent,
+                    Math.min(absent.mBackoffMs * 2, HIDL_MAX_BACKOFF_MS));
+        } else if (handle == null) {
+            handle = startHIDLProbe(feature, null, HIDL_MIN_BACKOFF_MS);
+        }
+        return awaitHIDLProbe(handle);
     }
 
-    private boolean isSupportedLegacy(int feature) {
+    private static IBase awaitHIDLProbe(Object handle) {
+        if (!(handle instanceof HIDLProbe)) {
+            return handle instanceof IBase ? (IBase) handle : null;
+        }
+        final HIDLProbe probe = (HIDLProbe) handle;
+        final long remaining = probe.mWaitUntil - SystemClock.uptimeMillis();
+        if (remaining <= 0) {
+            // A hung lookup, don't make every call pay for it
+            return probe.getNow(null);
+        }
         try {
-            if (checkService()) {
-                return feature == (sService.getSupportedFeatures() & feature);
+            return probe.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Still looking, use whatever else is there for now
+        }
+        return null;
+    }
+
+    /**
+     * Looks the hal up in the background unless another caller already
+     * replaced the expected entry, in which case that lookup is shared.
+     *
+     * @return the entry for the feature after the call
+     */
+    private Object startHIDLProbe(final int feature, Object expected, final long backoffMs) {
+        final int ordinal = FeatureRegistry.ordinal(feature);
+        final HIDLProbe probe = new HIDLProbe();
+        if (!mHIDLHandles.compareAndSet(ordinal, expected, probe)) {
+            return mHIDLHandles.get(ordinal);
+        }
+        getDiscoveryExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                IBase hal = null;
+                try {
+                    hal = getHIDLService(feature);
+                    if (hal != null && !linkHIDLToDeath(feature, hal)) {
+                        hal = null;
+                    }
+                } finally {
+                    mHIDLHandles.set(ordinal, hal != null ? hal : new HIDLAbsent(backoffMs));
+                    probe.complete(hal);
+                }
+                // Counted from the death until a lookup finds the hal again
+                final long diedAt = hal != null ? mHIDLDiedAt.getAndSet(ordinal, 0) : 0;
+                if (diedAt != 0) {
+                    final long recoveryMs = SystemClock.uptimeMillis() - diedAt;
+                    final int count = mHIDLReconnects.record(recoveryMs);
+                    Log.i(TAG, "Reconnected to the " + FeatureRegistry.getName(feature)
+                            + " hal after " + recoveryMs + "ms (reconnect #" + count + ")");
+                }
             }
+        });
+        return probe;
+    }
+
+    private boolean linkHIDLToDeath(final int feature, final IBase hal) {
+        try {
+            return hal.linkToDeath(new IHwBinder.DeathRecipient() {
+                @Override
+                public void serviceDied(long cookie) {
+                    onHIDLDied(feature, hal);
+                }
+            }, FeatureRegistry.ordinal(feature));
         } catch (RemoteException e) {
+            return false;
         }
-        return false;
+    }
+
+    /**
+     * Drops the given hal if it is still cached and starts looking for
+     * its replacement in the background
+     */
+    private void onHIDLDied(int feature, IBase hal) {
+        final int ordinal = FeatureRegistry.ordinal(feature);
+        if (!mHIDLHandles.compareAndSet(ordinal, hal, null)) {
+            return;
+        }
+        Log.w(TAG, "The " + FeatureRegistry.getName(feature) + " hal died, reconnecting");
+        invalidateTables(feature);
+        mHIDLDiedAt.compareAndSet(ordinal, 0, SystemClock.uptimeMillis());
+        startHIDLProbe(feature, null, HIDL_MIN_BACKOFF_MS);
+    }
+
+    /**
+     * Probes all hals in parallel, getService() may block until
+     * hwservicemanager has an answer so it must stay off the caller's thread
+     */
+    private void startHIDLDiscovery() {
+        final ArrayList<CompletableFuture<?>> probes = new ArrayList<CompletableFuture<?>>();
+        for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+            final int feature = FeatureRegistry.fromOrdinal(i);
+            if ((HIDL_FEATURES & feature) == 0) {
+                continue;
+            }
+            final Object handle = startHIDLProbe(feature, null, HIDL_MIN_BACKOFF_MS);
+            if (handle instanceof CompletableFuture) {
+                probes.add((CompletableFuture<?>) handle);
+            }
+        }
+        CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[probes.size()]))
+                .thenRun(new Runnable() {
+            @Override
+            public void run() {
+                mHIDLReady.complete(null);
+            }
+        });
+        getTimerExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mHIDLReady.complete(null)) {
+                    Log.w(TAG, "HIDL discovery did not finish in "
+                            + HIDL_DISCOVERY_TIMEOUT_MS + "ms");
+                }
+            }
+        }, HIDL_DISCOVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a future that completes once the HIDL hals have been
+     * discovered, or the discovery timed out. Until then, calls for
+     * features backed by a hal may briefly wait for it or fall back to
+     * the service.
+     *
+     * @return the readiness future
+     */
+    public CompletableFuture<Void> getReadyFuture() {
+        return mHIDLReady;
+    }
+
+    /**
+     * A running hal lookup, and until when callers may wait for it
+     */
+    private static final class HIDLProbe extends CompletableFuture<IBase> {
+        final long mWaitUntil = SystemClock.uptimeMillis() + HIDL_WAIT_MS;
+    }
+
+    /**
+     * How often a connection was recovered and how long that took
+     */
+    private static final class ReconnectStats {
+        private int mCount;
+        private long mLastMs;
+        private long mMaxMs;
+
+        /**
+         * @return the number of reconnects so far, this one included
+         */
+        synchronized int record(long recoveryMs) {
+            mLastMs = recoveryMs;
+            mMaxMs = Math.max(mMaxMs, recoveryMs);
+            return ++mCount;
+        }
+
+        synchronized void dump(PrintWriter pw, String name) {
+            pw.println("  " + name + ": " + mCount + " reconnects"
+                    + (mCount > 0 ? ", last took " + mLastMs + "ms, max " + mMaxMs + "ms" : ""));
+        }
+    }
+
+    /**
+     * Dumps the connection state and reconnect metrics of this process
+     *
+     * @hide
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("DeviceHardwareManager:");
+        pw.println("  service: " + (sService != null ? "connected" : "disconnected")
+                + ", " + sPendingResults.size() + " async results pending");
+        sServiceReconnects.dump(pw, "service");
+        mHIDLReconnects.dump(pw, "hals");
+        for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+            final int feature = FeatureRegistry.fromOrdinal(i);
+            if ((HIDL_FEATURES & feature) == 0) {
+                continue;
+            }
+            final Object handle = mHIDLHandles.get(i);
+            final String state;
+            if (handle instanceof IBase) {
+                state = "connected";
+            } else if (handle instanceof HIDLProbe) {
+                state = "looking up";
+            } else if (handle instanceof HIDLAbsent) {
+                state = "absent, retry in " + Math.max(0,
+                        ((HIDLAbsent) handle).mRetryAt - SystemClock.uptimeMillis()) + "ms";
+            } else {
+                state = "not looked up";
+            }
+            pw.println("    " + FeatureRegistry.getName(feature) + " hal: " + state);
+        }
+    }
+
+    /**
+     * A hal that was not found, and when to look for it again
+     */
+    private static final class HIDLAbsent {
+        final long mBackoffMs;
+        final long mRetryAt;
+
+        HIDLAbsent(long backoffMs) {
+            mBackoffMs = backoffMs;
+            mRetryAt = SystemClock.uptimeMillis() + backoffMs;
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getDiscoveryExecutor() {
+        if (sDiscoveryExecutor == null) {
+            // One thread per hal, so a slow one does not hold up the others
+            sDiscoveryExecutor = newDaemonExecutor(Integer.bitCount(HIDL_FEATURES), "discovery");
+        }
+        return sDiscoveryExecutor;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getTimerExecutor() {
+        if (sTimerExecutor == null) {
+            sTimerExecutor = newDaemonExecutor(1, "timer");
+            // Most result timeouts are cancelled, don't keep them queued
+            sTimerExecutor.setRemoveOnCancelPolicy(true);
+        }
+        return sTimerExecutor;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getReconnectExecutor() {
+        if (sReconnectExecutor == null) {
+            sReconnectExecutor = newDaemonExecutor(1, "reconnect");
+        }
+        return sReconnectExecutor;
+    }
+
+    private static ScheduledThreadPoolExecutor newDaemonExecutor(int threads, final String name) {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(ASYNC_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private boolean isSupportedLegacy(int feature) {
+        return FeatureRegistry.isSupported(callService(new HardwareCall<Integer>() {
+            @Override
+            Integer service(IDeviceHardwareService service) throws RemoteException {
+                return service.getSupportedFeatures();
+            }
+        }, 0), feature);
     }
 
     /**
@@ -223,25 +717,27 @@ public final class DeviceHardwareManager {
      *
      * @return true if the feature is enabled, false otherwise.
      */
-    public boolean get(int feature) {
-        if (!BOOLEAN_FEATURES.contains(feature)) {
+    public boolean get(final int feature) {
+        if (!FeatureRegistry.isBoolean(feature)) {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
-        try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+        return call(feature, new HardwareCall<Boolean>() {
+            @Override
+            Boolean hidl(IBase hal) throws RemoteException {
                 switch (feature) {
                     case FEATURE_FINGERPRINT_NAVIGATION:
-                        IFingerprintNavigation fingerprintNav = (IFingerprintNavigation) obj;
+                        IFingerprintNavigation fingerprintNav = (IFingerprintNavigation) hal;
                         return fingerprintNav.isSupported();
                 }
-            } else if (checkService()) {
-                return sService.get(feature);
+                return false;
             }
-        } catch (RemoteException e) {
-        }
-        return false;
+
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.get(feature);
+            }
+        }, false);
     }
 
     /**
@@ -254,112 +750,165 @@ public final class DeviceHardwareManager {
      *
      * @return true if the feature is enabled, false otherwise.
      */
-    public boolean set(int feature, boolean enable) {
-        if (!BOOLEAN_FEATURES.contains(feature)) {
+    public boolean set(final int feature, final boolean enable) {
+        if (!FeatureRegistry.isBoolean(feature)) {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
-        try {
-            if (isSupportedHIDL(feature)) {
-                IBase obj = mHIDLMap.get(feature);
+        return call(feature, new HardwareCall<Boolean>() {
+            @Override
+            Boolean hidl(IBase hal) throws RemoteException {
                 switch (feature) {
                     case FEATURE_FINGERPRINT_NAVIGATION:
-                        IFingerprintNavigation fingerprintNav = (IFingerprintNavigation) obj;
-                        return fingerprintNav.setEnabled(enable);
+                        IFingerprintNavigation fingerprintNav = (IFingerprintNavigation) hal;
+                        return reportIfChanged(feature, fingerprintNav.setEnabled(enable));
                 }
-            } else if (checkService()) {
-                return sService.set(feature, enable);
+                return false;
             }
-        } catch (RemoteException e) {
-        }
-        return false;
+
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.set(feature, enable);
+            }
+        }, false);
     }
 
     /**
      * @return a list of available display modes on the devices
      */
     public DisplayMode[] getDisplayModes() {
-        DisplayMode[] modes = null;
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes dm = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                modes = HIDLHelper.fromHIDLModes(dm.getDisplayModes());
-            } else if (checkService()) {
-                modes = sService.getDisplayModes();
+        final Table<DisplayMode> table = getDisplayModeTable();
+        return table != null ? table.mArray.clone() : null;
+    }
+
+    /**
+     * @return an unmodifiable list of the available display modes, shared
+     *         between calls, or null if there are none
+     */
+    public List<DisplayMode> getDisplayModeList() {
+        final Table<DisplayMode> table = getDisplayModeTable();
+        return table != null ? table.mList : null;
+    }
+
+    private Table<DisplayMode> getDisplayModeTable() {
+        Table<DisplayMode> table = mDisplayModeTable;
+        if (table != null) {
+            return table;
+        }
+        final int epoch = getTableEpoch();
+        final DisplayMode[] modes = remapDisplayModes(call(FEATURE_DISPLAY_MODES,
+                new HardwareCall<DisplayMode[]>() {
+            @Override
+            DisplayMode[] hidl(IBase hal) throws RemoteException {
+                return HIDLHelper.fromHIDLModes(((IDisplayModes) hal).getDisplayModes());
             }
-        } catch (RemoteException e) {
-        } finally {
-            if (modes == null) {
-                return null;
+
+            @Override
+            DisplayMode[] service(IDeviceHardwareService service) throws RemoteException {
+                return service.getDisplayModes();
             }
-            final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
-            for (DisplayMode mode : modes) {
-                DisplayMode r = remapDisplayMode(mode);
-                if (r != null) {
-                    remapped.add(r);
-                }
+        }, null));
+        if (modes == null) {
+            return null;
+        }
+        table = new Table<DisplayMode>(modes);
+        synchronized (mTableLock) {
+            if (epoch != mTableEpoch) {
+                // Invalidated while we were fetching, don't keep it
+                return table;
             }
-            return remapped.toArray(new DisplayMode[0]);
+            mDisplayModeTable = table;
         }
+        keepStateCallback();
+        return table;
     }
 
     /**
      * @return the currently active display mode
      */
     public DisplayMode getCurrentDisplayMode() {
-        DisplayMode mode = null;
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes dm = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                mode = HIDLHelper.fromHIDLMode(dm.getCurrentDisplayMode());
-            } else if (checkService()) {
-                mode = sService.getCurrentDisplayMode();
+        final DisplayMode mode = call(FEATURE_DISPLAY_MODES, new HardwareCall<DisplayMode>() {
+            @Override
+            DisplayMode hidl(IBase hal) throws RemoteException {
+                return HIDLHelper.fromHIDLMode(((IDisplayModes) hal).getCurrentDisplayMode());
             }
-        } catch (RemoteException e) {
-        } finally {
-            return mode != null ? remapDisplayMode(mode) : null;
-        }
+
+            @Override
+            DisplayMode service(IDeviceHardwareService service) throws RemoteException {
+                return service.getCurrentDisplayMode();
+            }
+        }, null);
+        return mode != null ? remapDisplayMode(mode) : null;
     }
 
     /**
      * @return the default display mode to be set on boot
      */
     public DisplayMode getDefaultDisplayMode() {
-        DisplayMode mode = null;
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes dm = (IDisplayModes) mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                mode = HIDLHelper.fromHIDLMode(dm.getDefaultDisplayMode());
-            } else if (checkService()) {
-                mode = sService.getDefaultDisplayMode();
+        final DisplayMode mode = call(FEATURE_DISPLAY_MODES, new HardwareCall<DisplayMode>() {
+            @Override
+            DisplayMode hidl(IBase hal) throws RemoteException {
+                return HIDLHelper.fromHIDLMode(((IDisplayModes) hal).getDefaultDisplayMode());
             }
-        } catch (RemoteException e) {
-        } finally {
-            return mode != null ? remapDisplayMode(mode) : null;
-        }
+
+            @Override
+            DisplayMode service(IDeviceHardwareService service) throws RemoteException {
+                return service.getDefaultDisplayMode();
+            }
+        }, null);
+        return mode != null ? remapDisplayMode(mode) : null;
     }
 
     /**
      * @return true if setting the mode was successful
      */
-    public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
-        try {
-            if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
-                IDisplayModes dm = (IDisplayModes)
-                        mHIDLMap.get(FEATURE_DISPLAY_MODES);
-                return dm.setDisplayMode(mode.id, makeDefault);
-            } else if (checkService()) {
-                return sService.setDisplayMode(mode, makeDefault);
+    public boolean setDisplayMode(final DisplayMode mode, final boolean makeDefault) {
+        return call(FEATURE_DISPLAY_MODES, new HardwareCall<Boolean>() {
+            @Override
+            Boolean hidl(IBase hal) throws RemoteException {
+                return reportIfChanged(FEATURE_DISPLAY_MODES,
+                        ((IDisplayModes) hal).setDisplayMode(mode.id, makeDefault));
             }
-        } catch (RemoteException e) {
+
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.setDisplayMode(mode, makeDefault);
+            }
+        }, false);
+    }
+
+    private DisplayMode[] remapDisplayModes(DisplayMode[] modes) {
+        if (modes == null) {
+            return null;
         }
-        return false;
+        final DisplayModeRemapTable table = mRemapTable;
+        if (table == null || !table.covers(modes)) {
+            // First list, or the hal changed its modes
+            mRemapTable = DisplayModeRemapTable.build(modes, mDisplayModeMappings,
+                    mFilterDisplayModes);
+        }
+        final ArrayList<DisplayMode> remapped = new ArrayList<DisplayMode>();
+        for (DisplayMode mode : modes) {
+            DisplayMode r = remapDisplayMode(mode);
+            if (r != null) {
+                remapped.add(r);
+            }
+        }
+        return remapped.toArray(new DisplayMode[0]);
     }
 
     private DisplayMode remapDisplayMode(DisplayMode dm) {
         if (dm == null) {
             return null;
         }
+        final DisplayModeRemapTable table = mRemapTable;
+        if (table != null) {
+            final DisplayMode remapped = table.lookup(dm);
+            if (remapped != null) {
+                return remapped != DisplayModeRemapTable.FILTERED ? remapped : null;
+            }
+        }
+        // Not in the table, e.g. the hal renamed the mode since
         if (mDisplayModeMappings.containsKey(dm.name)) {
             return new DisplayMode(dm.id, mDisplayModeMappings.get(dm.name));
         }
@@ -372,87 +921,519 @@ public final class DeviceHardwareManager {
     /**
      * @return the status of the fingerprint navigation
      */
-    public boolean setFingerprintNavigation(boolean canUse) {
-        try {
-            if (isSupportedHIDL(FEATURE_FINGERPRINT_NAVIGATION)) {
-                IFingerprintNavigation fingerprintNav = (IFingerprintNavigation)
-                        mHIDLMap.get(FEATURE_FINGERPRINT_NAVIGATION);
-                return fingerprintNav.setEnabled(canUse);
-            } else if (checkService()) {
-                return sService.setFingerprintNavigation(canUse);
+    public boolean setFingerprintNavigation(final boolean canUse) {
+        return call(FEATURE_FINGERPRINT_NAVIGATION, new HardwareCall<Boolean>() {
+            @Override
+            Boolean hidl(IBase hal) throws RemoteException {
+                IFingerprintNavigation fingerprintNav = (IFingerprintNavigation) hal;
+                return reportIfChanged(FEATURE_FINGERPRINT_NAVIGATION,
+                        fingerprintNav.setEnabled(canUse));
             }
-        } catch (RemoteException e) {
-        }
-        return false;
+
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.setFingerprintNavigation(canUse);
+            }
+        }, false);
     }
 
     /**
      * @return notifies that the alert slider can be used
      */
     public boolean triStateReady() {
-        try {
-            if (checkService()) {
-                return sService.triStateReady();
+        return callService(new HardwareCall<Boolean>() {
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.triStateReady();
             }
-        } catch (RemoteException e) {
-        }
-        return false;
+        }, false);
     }
 
     /**
      * @return handles the key event of the alert slider
      */
-    public KeyEvent handleTriStateEvent(KeyEvent event) {
-        try {
-            if (checkService()) {
-                return sService.handleTriStateEvent(event);
+    public KeyEvent handleTriStateEvent(final KeyEvent event) {
+        return callService(new HardwareCall<KeyEvent>() {
+            @Override
+            KeyEvent service(IDeviceHardwareService service) throws RemoteException {
+                return service.handleTriStateEvent(event);
             }
-        } catch (RemoteException e) {
-        }
-        return null;
+        }, null);
     }
 
     /**
      * @return a list of available touchscreen gestures on the devices
      */
     public TouchscreenGesture[] getTouchscreenGestures() {
-        try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
+        final Table<TouchscreenGesture> table = getGestureTable();
+        return table != null ? table.mArray.clone() : null;
+    }
+
+    /**
+     * @return an unmodifiable list of the available touchscreen gestures,
+     *         shared between calls, or null if there are none
+     */
+    public List<TouchscreenGesture> getTouchscreenGestureList() {
+        final Table<TouchscreenGesture> table = getGestureTable();
+        return table != null ? table.mList : null;
+    }
+
+    private Table<TouchscreenGesture> getGestureTable() {
+        Table<TouchscreenGesture> table = mGestureTable;
+        if (table != null) {
+            return table;
+        }
+        final int epoch = getTableEpoch();
+        final TouchscreenGesture[] gestures = call(FEATURE_TOUCHSCREEN_GESTURES,
+                new HardwareCall<TouchscreenGesture[]>() {
+            @Override
+            TouchscreenGesture[] hidl(IBase hal) throws RemoteException {
+                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture) hal;
                 return HIDLHelper.fromHIDLGestures(touchscreenGesture.getSupportedGestures());
-            } else if (checkService()) {
-                return sService.getTouchscreenGestures();
             }
-        } catch (RemoteException e) {
+
+            @Override
+            TouchscreenGesture[] service(IDeviceHardwareService service)
+                    throws RemoteException {
+                return service.getTouchscreenGestures();
+            }
+        }, null);
+        if (gestures == null) {
+            return null;
+        }
+        table = new Table<TouchscreenGesture>(gestures);
+        synchronized (mTableLock) {
+            if (epoch != mTableEpoch) {
+                return table;
+            }
+            mGestureTable = table;
+        }
+        keepStateCallback();
+        return table;
+    }
+
+    /**
+     * An immutable array and its list view, both handed out as is
+     */
+    private static final class Table<T> {
+        final T[] mArray;
+        final List<T> mList;
+
+        Table(T[] array) {
+            mArray = array;
+            mList = Collections.unmodifiableList(Arrays.asList(array));
+        }
+    }
+
+    private int getTableEpoch() {
+        synchronized (mTableLock) {
+            return mTableEpoch;
+        }
+    }
+
+    private void invalidateTables(int features) {
+        final boolean displayModes = (features & FEATURE_DISPLAY_MODES) != 0;
+        final boolean gestures = (features & FEATURE_TOUCHSCREEN_GESTURES) != 0;
+        if (!displayModes && !gestures) {
+            return;
+        }
+        synchronized (mTableLock) {
+            mTableEpoch++;
+            if (displayModes) {
+                mDisplayModeTable = null;
+            }
+            if (gestures) {
+                mGestureTable = null;
+            }
         }
-        return null;
     }
 
     /**
      * @return true if setting the activation status was successful
      */
     public boolean setTouchscreenGestureEnabled(
-            TouchscreenGesture gesture, boolean state) {
-        try {
-            if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
-                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture)
-                        mHIDLMap.get(FEATURE_TOUCHSCREEN_GESTURES);
-                return touchscreenGesture.setGestureEnabled(
-                        HIDLHelper.toHIDLGesture(gesture), state);
-            } else if (checkService()) {
-                return sService.setTouchscreenGestureEnabled(gesture, state);
+            final TouchscreenGesture gesture, final boolean state) {
+        return call(FEATURE_TOUCHSCREEN_GESTURES, new HardwareCall<Boolean>() {
+            @Override
+            Boolean hidl(IBase hal) throws RemoteException {
+                ITouchscreenGesture touchscreenGesture = (ITouchscreenGesture) hal;
+                return reportIfChanged(FEATURE_TOUCHSCREEN_GESTURES,
+                        touchscreenGesture.setGestureEnabled(
+                                HIDLHelper.toHIDLGesture(gesture), state));
             }
-        } catch (RemoteException e) {
+
+            @Override
+            Boolean service(IDeviceHardwareService service) throws RemoteException {
+                return service.setTouchscreenGestureEnabled(gesture, state);
+            }
+        }, false);
+    }
+
+    /**
+     * Asynchronous version of {@link #setDisplayMode}. Returns immediately
+     * instead of waiting for the hardware.
+     *
+     * @return a future completed with true if setting the mode was successful
+     */
+    public CompletableFuture<Boolean> setDisplayModeAsync(final DisplayMode mode,
+            final boolean makeDefault) {
+        if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            return supplyAsync(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return setDisplayMode(mode, makeDefault);
+                }
+            });
         }
-        return false;
+        return callServiceAsync(new HardwareCall<CompletableFuture<Boolean>>() {
+            @Override
+            CompletableFuture<Boolean> service(IDeviceHardwareService service)
+                    throws RemoteException {
+                final ResultFuture future = new ResultFuture();
+                service.setDisplayModeAsync(mode, makeDefault, future.mCallback);
+                return future;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #setFingerprintNavigation}. Returns
+     * immediately instead of waiting for the hardware.
+     *
+     * @return a future completed with the status of the fingerprint navigation
+     */
+    public CompletableFuture<Boolean> setFingerprintNavigationAsync(final boolean canUse) {
+        if (isSupportedHIDL(FEATURE_FINGERPRINT_NAVIGATION)) {
+            return supplyAsync(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return setFingerprintNavigation(canUse);
+                }
+            });
+        }
+        return callServiceAsync(new HardwareCall<CompletableFuture<Boolean>>() {
+            @Override
+            CompletableFuture<Boolean> service(IDeviceHardwareService service)
+                    throws RemoteException {
+                final ResultFuture future = new ResultFuture();
+                service.setFingerprintNavigationAsync(canUse, future.mCallback);
+                return future;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #setTouchscreenGestureEnabled}. Returns
+     * immediately instead of waiting for the hardware.
+     *
+     * @return a future completed with true if setting the activation status was successful
+     */
+    public CompletableFuture<Boolean> setTouchscreenGestureEnabledAsync(
+            final TouchscreenGesture gesture, final boolean state) {
+        if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
+            return supplyAsync(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return setTouchscreenGestureEnabled(gesture, state);
+                }
+            });
+        }
+        return callServiceAsync(new HardwareCall<CompletableFuture<Boolean>>() {
+            @Override
+            CompletableFuture<Boolean> service(IDeviceHardwareService service)
+                    throws RemoteException {
+                final ResultFuture future = new ResultFuture();
+                service.setTouchscreenGestureEnabledAsync(gesture, state, future.mCallback);
+                return future;
+            }
+        });
+    }
+
+    /**
+     * Sends a oneway call to the service. Every attempt registers its own
+     * result, so a retry after the service died is not answered by the
+     * result failed along with the dead service.
+     *
+     * @return the result of the attempt that went through, or a future
+     *         completed with false if none did
+     */
+    private CompletableFuture<Boolean> callServiceAsync(
+            HardwareCall<CompletableFuture<Boolean>> call) {
+        final CompletableFuture<Boolean> future = callService(call, null);
+        return future != null ? future : CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     * Completed by a oneway result callback from the service, or with false
+     * if the service dies or does not answer in {@link #RESULT_TIMEOUT_MS}
+     */
+    private static final class ResultFuture extends CompletableFuture<Boolean> {
+        final IDeviceHardwareResultCallback.Stub mCallback =
+                new IDeviceHardwareResultCallback.Stub() {
+            @Override
+            public void onResult(boolean success) {
+                complete(success);
+            }
+        };
+
+        ResultFuture() {
+            sPendingResults.add(this);
+            final ScheduledFuture<?> timeout = getTimerExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (complete(false)) {
+                        Log.w(TAG, "No result from DeviceHardwareService in "
+                                + RESULT_TIMEOUT_MS + "ms");
+                    }
+                }
+            }, RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            whenComplete(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean success, Throwable t) {
+                    sPendingResults.remove(ResultFuture.this);
+                    timeout.cancel(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * HIDL calls are synchronous, run them on our own thread instead
+     */
+    private static CompletableFuture<Boolean> supplyAsync(final Callable<Boolean> call) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        getAsyncExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(call.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static synchronized Executor getAsyncExecutor() {
+        if (sAsyncExecutor == null) {
+            // A single thread keeps requests in order and goes away when idle
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    ASYNC_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            sAsyncExecutor = executor;
+        }
+        return sAsyncExecutor;
+    }
+
+    /**
+     * Get the supported features and the state of all of them at once.
+     * Features backed by a HIDL hal are read from the hal, everything else
+     * comes from a single call into the service.
+     *
+     * @return the hardware snapshot, or null if neither a hal nor the service is available
+     */
+    public HardwareSnapshot getHardwareSnapshot() {
+        final HardwareSnapshot legacy = callService(new HardwareCall<HardwareSnapshot>() {
+            @Override
+            HardwareSnapshot service(IDeviceHardwareService service) throws RemoteException {
+                return service.getHardwareSnapshot();
+            }
+        }, null);
+
+        int supported = legacy != null ? legacy.getSupportedFeatures() : 0;
+        DisplayMode[] displayModes = null;
+        DisplayMode currentDisplayMode = null;
+        DisplayMode defaultDisplayMode = null;
+        TouchscreenGesture[] touchscreenGestures = null;
+
+        if (isSupportedHIDL(FEATURE_DISPLAY_MODES)) {
+            supported |= FEATURE_DISPLAY_MODES;
+            displayModes = getDisplayModes();
+            currentDisplayMode = getCurrentDisplayMode();
+            defaultDisplayMode = getDefaultDisplayMode();
+        } else if (legacy != null) {
+            final Table<DisplayMode> table = mDisplayModeTable;
+            displayModes = table != null ? table.mArray.clone()
+                    : remapDisplayModes(legacy.getDisplayModes());
+            currentDisplayMode = remapDisplayMode(legacy.getCurrentDisplayMode());
+            defaultDisplayMode = remapDisplayMode(legacy.getDefaultDisplayMode());
+        }
+        if (isSupportedHIDL(FEATURE_FINGERPRINT_NAVIGATION)) {
+            supported |= FEATURE_FINGERPRINT_NAVIGATION;
+        }
+        if (isSupportedHIDL(FEATURE_TOUCHSCREEN_GESTURES)) {
+            supported |= FEATURE_TOUCHSCREEN_GESTURES;
+            touchscreenGestures = getTouchscreenGestures();
+        } else if (legacy != null) {
+            touchscreenGestures = legacy.getTouchscreenGestures();
+        }
+
+        if (legacy == null && supported == 0) {
+            return null;
+        }
+        return new HardwareSnapshot(supported, displayModes, currentDisplayMode,
+                defaultDisplayMode, touchscreenGestures,
+                legacy != null ? legacy.getGeneration() : 0);
+    }
+
+    /**
+     * Receives notifications about changes of the device hardware state
+     */
+    public interface StateListener {
+        /**
+         * Called after the state of one or more features changed. Changes
+         * made in quick succession are delivered as one call.
+         *
+         * @param features mask of the features that changed
+         * @param generation state generation after the change, increasing with every change,
+         *        also across restarts of the service
+         */
+        void onStateChanged(int features, long generation);
+    }
+
+    /**
+     * Registers a listener for device hardware state changes. Replaces any
+     * previous registration of the same listener.
+     *
+     * @param executor the executor the listener is called on
+     * @param listener the listener to register
+     */
+    public void registerStateListener(Executor executor, StateListener listener) {
+        synchronized (mStateListeners) {
+            final boolean first = mStateListeners.isEmpty();
+            mStateListeners.put(listener, executor);
+            if (first) {
+                registerStateCallback();
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener registered with {@link #registerStateListener}
+     */
+    public void unregisterStateListener(StateListener listener) {
+        synchronized (mStateListeners) {
+            if (mStateListeners.remove(listener) == null || !mStateListeners.isEmpty()
+                    || mTablesNeedCallback) {
+                return;
+            }
+            callService(new HardwareCall<Void>() {
+                @Override
+                Void service(IDeviceHardwareService service) throws RemoteException {
+                    service.unregisterCallback(mStateCallback);
+                    return null;
+                }
+            }, null);
+        }
+    }
+
+    private void registerStateCallback() {
+        callService(new HardwareCall<Void>() {
+            @Override
+            Void service(IDeviceHardwareService service) throws RemoteException {
+                service.registerCallback(mStateCallback);
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Called once a restarted service is connected again. Registrations
+     * were lost with the old service and all state may have changed.
+     */
+    private void onServiceReconnected() {
+        invalidateTables(FeatureRegistry.ALL_FEATURES);
+        synchronized (mStateListeners) {
+            if (mStateListeners.isEmpty() && !mTablesNeedCallback) {
+                return;
+            }
+            registerStateCallback();
+        }
+        final long generation = callService(new HardwareCall<Long>() {
+            @Override
+            Long service(IDeviceHardwareService service) throws RemoteException {
+                return service.getStateGeneration();
+            }
+        }, -1L);
+        if (generation < 0) {
+            // Gone again, the next reconnect tells the listeners
+            return;
+        }
+        dispatchStateChanged(FeatureRegistry.ALL_FEATURES, generation);
+    }
+
+    /**
+     * Makes sure cached tables hear about changes even without listeners
+     */
+    private void keepStateCallback() {
+        synchronized (mStateListeners) {
+            if (mTablesNeedCallback) {
+                return;
+            }
+            mTablesNeedCallback = true;
+            if (mStateListeners.isEmpty() && sService != null) {
+                registerStateCallback();
+            }
+        }
+    }
+
+    private final IDeviceHardwareCallback.Stub mStateCallback =
+            new IDeviceHardwareCallback.Stub() {
+        @Override
+        public void onHardwareStateChanged(int features, int listChanges, long generation) {
+            // Setting a mode or gesture leaves the lists alone, keep them
+            invalidateTables(listChanges);
+            dispatchStateChanged(features, generation);
+        }
+    };
+
+    private void dispatchStateChanged(final int features, final long generation) {
+        final ArrayMap<StateListener, Executor> listeners;
+        synchronized (mStateListeners) {
+            listeners = new ArrayMap<StateListener, Executor>(mStateListeners);
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            final StateListener listener = listeners.keyAt(i);
+            listeners.valueAt(i).execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onStateChanged(features, generation);
+                }
+            });
+        }
+    }
+
+    /**
+     * Changes made through a HIDL hal bypass the service, tell it about
+     * them so that state listeners everywhere are notified.
+     */
+    private boolean reportIfChanged(final int features, boolean changed) {
+        if (changed && sService != null) {
+            callService(new HardwareCall<Void>() {
+                @Override
+                Void service(IDeviceHardwareService service) throws RemoteException {
+                    service.reportStateChanged(features);
+                    return null;
+                }
+            }, null);
+        }
+        return changed;
     }
 
     /**
      * @return true if service is valid
      */
     private boolean checkService() {
-        if (sService == null) {
+        if (sService == null && getService() == null) {
             Log.w(TAG, "not connected to DeviceHardwareManagerService");
             return false;
         }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aosip.hardware;
+
+import android.util.ArrayMap;
+
+/**
+ * The display mode mappings and filtering compiled against one mode list
+ * of the hal.
+ *
+ * Entries are indexed by mode id and hold the canonical remapped instance
+ * handed out for that mode, or {@link #FILTERED} if the mode is hidden, so
+ * remapping a mode is an array index and never allocates. A mode whose
+ * name differs from the one the table was built with is not covered and
+ * has to be remapped the slow way.
+ */
+final class DisplayModeRemapTable {
+
+    /**
+     * Marks a filtered mode, compare by identity
+     */
+    static final DisplayMode FILTERED = new DisplayMode(-1, null);
+
+    // Mode ids are small in practice, don't build huge tables for odd ones
+    private static final int MAX_SPAN = 256;
+
+    private final int mMinId;
+    private final String[] mNames;
+    private final DisplayMode[] mRemapped;
+
+    private DisplayModeRemapTable(int minId, int span) {
+        mMinId = minId;
+        mNames = new String[span];
+        mRemapped = new DisplayMode[span];
+    }
+
+    /**
+     * @return the table for the given mode list, or null if the ids are
+     *         duplicated or too sparse for a table
+     */
+    static DisplayModeRemapTable build(DisplayMode[] modes,
+            ArrayMap<String, String> mappings, boolean filter) {
+        if (modes.length == 0) {
+            return null;
+        }
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (DisplayMode mode : modes) {
+            if (mode == null || mode.name == null) {
+                return null;
+            }
+            minId = Math.min(minId, mode.id);
+            maxId = Math.max(maxId, mode.id);
+        }
+        final long span = (long) maxId - minId + 1;
+        if (span > MAX_SPAN) {
+            return null;
+        }
+
+        final DisplayModeRemapTable table = new DisplayModeRemapTable(minId, (int) span);
+        for (DisplayMode mode : modes) {
+            final int index = mode.id - minId;
+            if (table.mNames[index] != null) {
+                return null;
+            }
+            table.mNames[index] = mode.name;
+            final String mapped = mappings.get(mode.name);
+            if (mapped != null) {
+                table.mRemapped[index] = new DisplayMode(mode.id, mapped);
+            } else if (!filter) {
+                table.mRemapped[index] = mode;
+            } else {
+                table.mRemapped[index] = FILTERED;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return the canonical remapped mode, {@link #FILTERED}, or null if
+     *         the table does not cover the given mode
+     */
+    DisplayMode lookup(DisplayMode mode) {
+        final long index = (long) mode.id - mMinId;
+        if (index < 0 || index >= mNames.length) {
+            return null;
+        }
+        final String name = mNames[(int) index];
+        if (name == null || !name.equals(mode.name)) {
+            return null;
+        }
+        return mRemapped[(int) index];
+    }
+
+    /**
+     * @return true if the table covers every mode of the given list
+     */
+    boolean covers(DisplayMode[] modes) {
+        for (DisplayMode mode : modes) {
+            if (mode == null || lookup(mode) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aosip.hardware;
+
+import static aosip.hardware.DeviceHardwareManager.FEATURE_ALERT_SLIDER;
+import static aosip.hardware.DeviceHardwareManager.FEATURE_DISPLAY_MODES;
+import static aosip.hardware.DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION;
+import static aosip.hardware.DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES;
+
+/**
+ * Describes the Device Hardware features.
+ *
+ * Every feature is a single bit of an int mask, and the bit's position is the
+ * feature's ordinal. Per-feature state is kept in arrays of
+ * {@link #MAX_FEATURES} entries indexed by ordinal, so looking a feature up
+ * never boxes or hashes.
+ *
+ * @hide
+ */
+public final class FeatureRegistry {
+
+    /**
+     * Number of features a mask can hold
+     */
+    public static final int MAX_FEATURES = Integer.SIZE;
+
+    /**
+     * Mask of every defined feature
+     */
+    public static final int ALL_FEATURES = FEATURE_DISPLAY_MODES
+            | FEATURE_FINGERPRINT_NAVIGATION
+            | FEATURE_ALERT_SLIDER
+            | FEATURE_TOUCHSCREEN_GESTURES;
+
+    /**
+     * Mask of the features with simple enable/disable controls
+     */
+    public static final int BOOLEAN_FEATURES = FEATURE_FINGERPRINT_NAVIGATION;
+
+    private static final String[] sNames = new String[MAX_FEATURES];
+
+    static {
+        sNames[ordinal(FEATURE_DISPLAY_MODES)] = "FEATURE_DISPLAY_MODES";
+        sNames[ordinal(FEATURE_FINGERPRINT_NAVIGATION)] = "FEATURE_FINGERPRINT_NAVIGATION";
+        sNames[ordinal(FEATURE_ALERT_SLIDER)] = "FEATURE_ALERT_SLIDER";
+        sNames[ordinal(FEATURE_TOUCHSCREEN_GESTURES)] = "FEATURE_TOUCHSCREEN_GESTURES";
+    }
+
+    private FeatureRegistry() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * @return true if the given value is exactly one defined feature
+     */
+    public static boolean isFeature(int feature) {
+        return feature != 0 && (feature & (feature - 1)) == 0 && (ALL_FEATURES & feature) != 0;
+    }
+
+    /**
+     * @return the ordinal of the given feature, or -1 if it is not exactly one defined feature
+     */
+    public static int ordinal(int feature) {
+        return isFeature(feature) ? Integer.numberOfTrailingZeros(feature) : -1;
+    }
+
+    /**
+     * @return the feature with the given ordinal
+     */
+    public static int fromOrdinal(int ordinal) {
+        return 1 << ordinal;
+    }
+
+    /**
+     * @return true if every feature in the given mask is set in the supported mask
+     */
+    public static boolean isSupported(int supportedFeatures, int features) {
+        return features != 0 && (supportedFeatures & features) == features;
+    }
+
+    /**
+     * @return true if the given value is exactly one feature with simple enable/disable controls
+     */
+    public static boolean isBoolean(int feature) {
+        return feature != 0 && (feature & (feature - 1)) == 0 && (BOOLEAN_FEATURES & feature) != 0;
+    }
+
+    /**
+     * @return the constant name of the given feature, or its hex value if it is not defined
+     */
+    public static String getName(int feature) {
+        final int ordinal = ordinal(feature);
+        return ordinal >= 0 ? sNames[ordinal] : "0x" + Integer.toHexString(feature);
+    }
+}
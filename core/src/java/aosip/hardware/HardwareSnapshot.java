@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package aosip.hardware;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import aosip.os.Concierge;
+import aosip.os.Concierge.ParcelInfo;
+
+/**
+ * Everything a client needs to render the device hardware state, fetched
+ * in a single call instead of one call per value.
+ *
+ * Values of unsupported features are null.
+ */
+public class HardwareSnapshot implements Parcelable {
+    private final int mSupportedFeatures;
+    private final DisplayMode[] mDisplayModes;
+    private final DisplayMode mCurrentDisplayMode;
+    private final DisplayMode mDefaultDisplayMode;
+    private final TouchscreenGesture[] mTouchscreenGestures;
+    private final long mGeneration;
+
+    /** @hide */
+    public HardwareSnapshot(int supportedFeatures, DisplayMode[] displayModes,
+            DisplayMode currentDisplayMode, DisplayMode defaultDisplayMode,
+            TouchscreenGesture[] touchscreenGestures, long generation) {
+        mSupportedFeatures = supportedFeatures;
+        mDisplayModes = displayModes;
+        mCurrentDisplayMode = currentDisplayMode;
+        mDefaultDisplayMode = defaultDisplayMode;
+        mTouchscreenGestures = touchscreenGestures;
+        mGeneration = generation;
+    }
+
+    private HardwareSnapshot(Parcel parcel) {
+        // Read parcelable version via the Concierge
+        ParcelInfo parcelInfo = Concierge.receiveParcel(parcel);
+        int parcelableVersion = parcelInfo.getParcelVersion();
+
+        mSupportedFeatures = parcel.readInt();
+        mDisplayModes = parcel.createTypedArray(DisplayMode.CREATOR);
+        mCurrentDisplayMode = readDisplayMode(parcel);
+        mDefaultDisplayMode = readDisplayMode(parcel);
+        mTouchscreenGestures = parcel.createTypedArray(TouchscreenGesture.CREATOR);
+        if (parcelableVersion >= 8) {
+            mGeneration = parcel.readLong();
+        } else {
+            mGeneration = 0;
+        }
+
+        // Complete parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    /**
+     * @return the mask of supported Device Hardware features
+     */
+    public int getSupportedFeatures() {
+        return mSupportedFeatures;
+    }
+
+    /**
+     * @return true if every feature in the given mask is supported
+     */
+    public boolean isSupported(int feature) {
+        return FeatureRegistry.isSupported(mSupportedFeatures, feature);
+    }
+
+    /**
+     * @return the available display modes
+     */
+    public DisplayMode[] getDisplayModes() {
+        return mDisplayModes;
+    }
+
+    /**
+     * @return the currently active display mode
+     */
+    public DisplayMode getCurrentDisplayMode() {
+        return mCurrentDisplayMode;
+    }
+
+    /**
+     * @return the display mode set on boot
+     */
+    public DisplayMode getDefaultDisplayMode() {
+        return mDefaultDisplayMode;
+    }
+
+    /**
+     * @return the available touchscreen gestures
+     */
+    public TouchscreenGesture[] getTouchscreenGestures() {
+        return mTouchscreenGestures;
+    }
+
+    /**
+     * @return the state generation this snapshot was taken at, as passed to
+     *         {@link DeviceHardwareManager.StateListener#onStateChanged}
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        // Tell the concierge to prepare the parcel
+        ParcelInfo parcelInfo = Concierge.prepareParcel(out);
+
+        out.writeInt(mSupportedFeatures);
+        out.writeTypedArray(mDisplayModes, flags);
+        writeDisplayMode(out, mCurrentDisplayMode, flags);
+        writeDisplayMode(out, mDefaultDisplayMode, flags);
+        out.writeTypedArray(mTouchscreenGestures, flags);
+        out.writeLong(mGeneration);
+
+        // Complete the parcel info for the concierge
+        parcelInfo.complete();
+    }
+
+    private static void writeDisplayMode(Parcel out, DisplayMode mode, int flags) {
+        if (mode != null) {
+            out.writeInt(1);
+            mode.writeToParcel(out, flags);
+        } else {
+            out.writeInt(0);
+        }
+    }
+
+    private static DisplayMode readDisplayMode(Parcel parcel) {
+        return parcel.readInt() != 0 ? DisplayMode.CREATOR.createFromParcel(parcel) : null;
+    }
+
+    /** @hide */
+    public static final Parcelable.Creator<HardwareSnapshot> CREATOR =
+            new Parcelable.Creator<HardwareSnapshot>() {
+        public HardwareSnapshot createFromParcel(Parcel in) {
+            return new HardwareSnapshot(in);
+        }
+
+        @Override
+        public HardwareSnapshot[] newArray(int size) {
+            return new HardwareSnapshot[size];
+        }
+    };
+}
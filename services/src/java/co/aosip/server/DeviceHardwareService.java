@@ -17,19 +17,33 @@
  */
 package co.aosip.server;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.Manifest;
+import android.os.Binder;
+import android.os.Environment;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.view.KeyEvent;
 
 import aosip.content.HardwareContext;
 import aosip.hardware.DeviceHardwareManager;
 import aosip.hardware.DisplayMode;
+import aosip.hardware.FeatureRegistry;
+import aosip.hardware.HardwareSnapshot;
+import aosip.hardware.IDeviceHardwareCallback;
+import aosip.hardware.IDeviceHardwareResultCallback;
 import aosip.hardware.IDeviceHardwareService;
 import aosip.hardware.TouchscreenGesture;
 
@@ -37,10 +51,25 @@ import co.aosip.hwcontrollers.AlertSliderController;
 import co.aosip.hwcontrollers.DisplayEngineController;
 import co.aosip.hwcontrollers.FingerprintNavigationController;
 import co.aosip.hwcontrollers.TouchscreenGestureController;
+import co.aosip.hwcontrollers.util.AtomicFileStore;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+import com.android.internal.util.DumpUtils;
 import com.android.server.HwSystemService;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /** @hide */
 public class DeviceHardwareService extends HwSystemService {
@@ -50,8 +79,70 @@ public class DeviceHardwareService extends HwSystemService {
     private final Context mContext;
     private final HardwareInterface mHwImpl;
 
+    // How long a caller waits for a feature that is still being probed
+    private static final long PROBE_WAIT_MS = 250;
+    // How long a probe may take before its feature is reported unsupported
+    private static final long PROBE_TIMEOUT_MS = 5000;
+
+    // Desired hardware state, restored on boot
+    private static final String STATE_FILE = "device_hardware.conf";
+    private static final long STATE_COMMIT_DELAY_MS = 1000;
+    private static final String KEY_DISPLAY_MODE = "display_mode";
+    private static final String KEY_FINGERPRINT_NAVIGATION = "fingerprint_navigation";
+    private static final String KEY_GESTURE_PREFIX = "gesture.";
+    private final AtomicFileStore mStateStore = new AtomicFileStore(
+            new File(Environment.getDataSystemDirectory(), STATE_FILE).getPath(),
+            STATE_COMMIT_DELAY_MS);
+
+    // Boot restore timings by feature ordinal
+    private final Object mRestoreLock = new Object();
+    @GuardedBy("mRestoreLock")
+    private final long[] mRestoreNanos = new long[FeatureRegistry.MAX_FEATURES];
+    @GuardedBy("mRestoreLock")
+    private long mRestoreTotalNanos = -1;
+
+    // Display mode requests within this window are collapsed into the last one
+    private static final String PROP_COALESCE_WINDOW_MS =
+            "persist.sys.devicehardware.coalesce_ms";
+    private static final long DEFAULT_COALESCE_WINDOW_MS = 50;
+    private final SetRequestCoalescer<DisplayModeRequest> mDisplayModeCoalescer;
+
+    // Serializes all hardware writes per feature, off the binder threads
+    private final HardwareExecutor mHwExecutor = new HardwareExecutor();
+
+    // Access permission decisions by calling uid
+    private final Object mPermissionLock = new Object();
+    @GuardedBy("mPermissionLock")
+    private final SparseBooleanArray mPermissionCache = new SparseBooleanArray();
+    @GuardedBy("mPermissionLock")
+    private long mPermissionCacheHits;
+    @GuardedBy("mPermissionLock")
+    private long mPermissionCacheMisses;
+    // Bumped on every invalidation, so a check racing one is not cached
+    @GuardedBy("mPermissionLock")
+    private int mPermissionGeneration;
+
+    // State change callbacks
+    private static final long NOTIFY_DELAY_MS = 50;
+    private final RemoteCallbackList<IDeviceHardwareCallback> mCallbacks =
+            new RemoteCallbackList<IDeviceHardwareCallback>();
+    private final Object mStateLock = new Object();
+    // Seeded from the clock, which runs on across service restarts, so that
+    // generations keep increasing for clients that saw the previous service
+    @GuardedBy("mStateLock")
+    private long mStateGeneration = SystemClock.elapsedRealtimeNanos();
+    @GuardedBy("mStateLock")
+    private int mPendingChangedFeatures;
+    @GuardedBy("mStateLock")
+    private int mPendingListChanges;
+    @GuardedBy("mStateLock")
+    private boolean mNotifyScheduled;
+
     private interface HardwareInterface {
+        public void startProbing();
+        public CompletableFuture<Boolean> getProbeResult(int feature);
         public int getSupportedFeatures();
+        public boolean isSupported(int feature);
         public boolean get(int feature);
         public boolean set(int feature, boolean enable);
 
@@ -71,27 +162,179 @@ public class DeviceHardwareService extends HwSystemService {
         // Touchscreen Gestures
         public TouchscreenGesture[] getTouchscreenGestures();
         public boolean setTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state);
+
+        public void dump(PrintWriter pw);
     }
 
     private class LegacyHardware implements HardwareInterface {
 
-        private int mSupportedFeatures = 0;
+        private final Object mProbeLock = new Object();
+        // Features whose probe found them supported
+        private volatile int mSupportedFeatures = 0;
+        // Features whose probe has not finished yet
+        private volatile int mPendingProbes = FeatureRegistry.ALL_FEATURES;
+        // Features whose probe missed its deadline and is still running
+        @GuardedBy("mProbeLock")
+        private int mTimedOutProbes = 0;
+        @GuardedBy("mProbeLock")
+        private final long[] mProbeNanos = new long[FeatureRegistry.MAX_FEATURES];
+        // The outcome of each probe, false if it missed its deadline
+        private final ArrayList<CompletableFuture<Boolean>> mProbeResults =
+                new ArrayList<CompletableFuture<Boolean>>(FeatureRegistry.MAX_FEATURES);
+
+        LegacyHardware() {
+            for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+                mProbeResults.add(new CompletableFuture<Boolean>());
+            }
+        }
+
+        /**
+         * Probes every controller in parallel. Controllers may touch sysfs or
+         * vendor HALs while probing, so this is kept out of the constructor.
+         */
+        public void startProbing() {
+            probe(DeviceHardwareManager.FEATURE_DISPLAY_MODES, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return DisplayEngineController.isSupported();
+                }
+            });
+            probe(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return FingerprintNavigationController.isSupported();
+                }
+            });
+            probe(DeviceHardwareManager.FEATURE_ALERT_SLIDER, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return AlertSliderController.isSupported();
+                }
+            });
+            probe(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return TouchscreenGestureController.isSupported();
+                }
+            });
+        }
+
+        /**
+         * Runs a probe on a thread of its own, so a hung one holds neither a
+         * hardware queue nor a pool thread. Past {@link #PROBE_TIMEOUT_MS}
+         * the feature is reported unsupported and the thread left behind.
+         */
+        private void probe(final int feature, final Callable<Boolean> probe) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    boolean supported = false;
+                    try {
+                        supported = probe.call();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Probing " + FeatureRegistry.getName(feature) + " failed", e);
+                    } finally {
+                        finishProbe(feature, supported,
+                                SystemClock.elapsedRealtimeNanos() - start);
+                    }
+                }
+            }, TAG + "-probe-" + FeatureRegistry.getName(feature));
+            thread.setDaemon(true);
+            thread.start();
+
+            BackgroundThread.getHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    abandonProbe(feature);
+                }
+            }, PROBE_TIMEOUT_MS);
+        }
+
+        private void finishProbe(int feature, boolean supported, long elapsed) {
+            final boolean late;
+            synchronized (mProbeLock) {
+                late = (mTimedOutProbes & feature) != 0;
+                if (supported) {
+                    mSupportedFeatures |= feature;
+                }
+                mProbeNanos[FeatureRegistry.ordinal(feature)] = elapsed;
+                mPendingProbes &= ~feature;
+                mTimedOutProbes &= ~feature;
+                mProbeLock.notifyAll();
+            }
+            if (late) {
+                Log.w(TAG, "Probing " + FeatureRegistry.getName(feature) + " finished late after "
+                        + (elapsed / 1000000) + "ms, " + (supported ? "supported" : "unsupported"));
+                if (supported) {
+                    // Its modes or gestures were unknown until now
+                    notifyStateChanged(feature, feature);
+                }
+            } else if (elapsed > PROBE_WAIT_MS * 1000000L) {
+                Log.w(TAG, "Probing " + FeatureRegistry.getName(feature) + " took "
+                        + (elapsed / 1000000) + "ms");
+            }
+            mProbeResults.get(FeatureRegistry.ordinal(feature)).complete(supported);
+        }
+
+        private void abandonProbe(int feature) {
+            synchronized (mProbeLock) {
+                if ((mPendingProbes & feature) == 0) {
+                    return;
+                }
+                mPendingProbes &= ~feature;
+                mTimedOutProbes |= feature;
+                mProbeLock.notifyAll();
+            }
+            Log.w(TAG, "Probing " + FeatureRegistry.getName(feature) + " did not finish in "
+                    + PROBE_TIMEOUT_MS + "ms, reporting as unsupported");
+            mProbeResults.get(FeatureRegistry.ordinal(feature)).complete(false);
+        }
+
+        public CompletableFuture<Boolean> getProbeResult(int feature) {
+            return mProbeResults.get(FeatureRegistry.ordinal(feature));
+        }
 
-        public LegacyHardware() {
-            if (DisplayEngineController.isSupported())
-                mSupportedFeatures |= DeviceHardwareManager.FEATURE_DISPLAY_MODES;
-            if (FingerprintNavigationController.isSupported())
-                mSupportedFeatures |= DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION;
-            if (AlertSliderController.isSupported())
-                mSupportedFeatures |= DeviceHardwareManager.FEATURE_ALERT_SLIDER;
-            if (TouchscreenGestureController.isSupported())
-                mSupportedFeatures |= DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES;
+        /**
+         * Waits up to the given time for the probes of the given features
+         *
+         * @return true if all of them have finished
+         */
+        private boolean awaitProbes(int features, long timeoutMs) {
+            if ((mPendingProbes & features) == 0) {
+                return true;
+            }
+            final long deadline = SystemClock.uptimeMillis() + timeoutMs;
+            synchronized (mProbeLock) {
+                while ((mPendingProbes & features) != 0) {
+                    final long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0) {
+                        Log.w(TAG, "Still probing 0x"
+                                + Integer.toHexString(mPendingProbes & features)
+                                + ", reporting as unsupported for now");
+                        return false;
+                    }
+                    try {
+                        mProbeLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
         public int getSupportedFeatures() {
+            awaitProbes(FeatureRegistry.ALL_FEATURES, PROBE_WAIT_MS);
             return mSupportedFeatures;
         }
 
+        public boolean isSupported(int feature) {
+            awaitProbes(feature, PROBE_WAIT_MS);
+            return FeatureRegistry.isSupported(mSupportedFeatures, feature);
+        }
+
         public boolean get(int feature) {
             switch(feature) {
                 case DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION:
@@ -141,6 +384,28 @@ public class DeviceHardwareService extends HwSystemService {
         public boolean setTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state) {
             return TouchscreenGestureController.setGestureEnabled(gesture, state);
         }
+
+        public void dump(PrintWriter pw) {
+            pw.println("  controller probes:");
+            synchronized (mProbeLock) {
+                for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+                    final int feature = FeatureRegistry.fromOrdinal(i);
+                    if (!FeatureRegistry.isFeature(feature)) {
+                        continue;
+                    }
+                    final String status;
+                    if ((mPendingProbes & feature) != 0) {
+                        status = "probing";
+                    } else if ((mTimedOutProbes & feature) != 0) {
+                        status = "timed out, still probing";
+                    } else {
+                        status = ((mSupportedFeatures & feature) != 0 ? "supported"
+                                : "unsupported") + ", took " + (mProbeNanos[i] / 1000) + "us";
+                    }
+                    pw.println("    " + FeatureRegistry.getName(feature) + ": " + status);
+                }
+            }
+        }
     }
 
     private HardwareInterface getImpl(Context context) {
@@ -151,6 +416,7 @@ public class DeviceHardwareService extends HwSystemService {
         super(context);
         mContext = context;
         mHwImpl = getImpl(context);
+        mDisplayModeCoalescer = createDisplayModeCoalescer();
         publishBinderService(HardwareContext.DEVICE_HARDWARE_SERVICE, mService);
     }
 
@@ -161,35 +427,472 @@ public class DeviceHardwareService extends HwSystemService {
 
     @Override
     public void onBootPhase(int phase) {
-        if (phase == PHASE_BOOT_COMPLETED) {
-            Intent intent = new Intent(aosip.content.Intent.ACTION_INITIALIZE_DEVICE_HARDWARE);
-            intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
-            mContext.sendBroadcastAsUser(intent, UserHandle.ALL,
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS);
+        if (phase == PHASE_SYSTEM_SERVICES_READY) {
+            registerPermissionInvalidation();
+        } else if (phase == PHASE_BOOT_COMPLETED) {
+            restoreState();
         }
     }
 
+    /**
+     * Reapplies the persisted state of every legacy feature in parallel,
+     * each on the low priority lane of its own queue, then lets the rest of
+     * the system know the hardware is initialized and which features it
+     * restored. Features without persisted state, like on first boot, and
+     * hal backed features are left to the receivers.
+     */
+    private void restoreState() {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        final CompletableFuture<?>[] restores = {
+            restore(DeviceHardwareManager.FEATURE_DISPLAY_MODES, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    final DisplayMode mode = findDisplayMode(mStateStore.get(KEY_DISPLAY_MODE));
+                    if (mode == null) {
+                        return false;
+                    }
+                    return notifyIfChanged(DeviceHardwareManager.FEATURE_DISPLAY_MODES,
+                            mHwImpl.setDisplayMode(mode, true));
+                }
+            }),
+            restore(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    final String value = mStateStore.get(KEY_FINGERPRINT_NAVIGATION);
+                    if (value == null) {
+                        return false;
+                    }
+                    return notifyIfChanged(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION,
+                            mHwImpl.setFingerprintNavigation("1".equals(value)));
+                }
+            }),
+            restore(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    final TouchscreenGesture[] gestures = mHwImpl.getTouchscreenGestures();
+                    if (gestures == null) {
+                        return false;
+                    }
+                    boolean persisted = false;
+                    boolean restored = true;
+                    for (TouchscreenGesture gesture : gestures) {
+                        final String value = mStateStore.get(KEY_GESTURE_PREFIX + gesture.id);
+                        if (value != null) {
+                            persisted = true;
+                            restored &= mHwImpl.setTouchscreenGestureEnabled(gesture,
+                                    "1".equals(value));
+                        }
+                    }
+                    return notifyIfChanged(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+                            persisted && restored);
+                }
+            }),
+        };
+        final int[] features = {
+            DeviceHardwareManager.FEATURE_DISPLAY_MODES,
+            DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION,
+            DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+        };
+
+        CompletableFuture.allOf(restores).whenComplete(new BiConsumer<Object, Throwable>() {
+            @Override
+            public void accept(Object result, Throwable t) {
+                final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+                synchronized (mRestoreLock) {
+                    mRestoreTotalNanos = elapsed;
+                }
+                int restored = 0;
+                for (int i = 0; i < restores.length; i++) {
+                    if (Boolean.TRUE.equals(restores[i].getNow(null))) {
+                        restored |= features[i];
+                    }
+                }
+                Log.i(TAG, "Restored hardware state in " + (elapsed / 1000000) + "ms, features "
+                        + Integer.toHexString(restored));
+
+                // Receivers only need to reapply the features not listed here
+                Intent intent = new Intent(
+                        aosip.content.Intent.ACTION_INITIALIZE_DEVICE_HARDWARE);
+                intent.putExtra(aosip.content.Intent.EXTRA_RESTORED_FEATURES, restored);
+                intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+                mContext.sendBroadcastAsUser(intent, UserHandle.ALL,
+                        android.Manifest.permission.DEVICE_HARDWARE_ACCESS);
+            }
+        });
+    }
+
+    /**
+     * @return a future completed with true if the feature's persisted state
+     *         was reapplied
+     */
+    private CompletableFuture<Boolean> restore(final int feature,
+            final Callable<Boolean> restore) {
+        // Queued only once the probe is done, nothing waits for it meanwhile
+        return mHwImpl.getProbeResult(feature).thenCompose(
+                new Function<Boolean, CompletionStage<Boolean>>() {
+            @Override
+            public CompletionStage<Boolean> apply(Boolean supported) {
+                if (!supported) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return submitRestore(feature, restore);
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> submitRestore(final int feature,
+            final Callable<Boolean> restore) {
+        return mHwExecutor.submit(feature, HardwareExecutor.PRIORITY_LOW, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                try {
+                    return restore.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Restoring " + FeatureRegistry.getName(feature) + " failed", e);
+                    return false;
+                } finally {
+                    synchronized (mRestoreLock) {
+                        mRestoreNanos[FeatureRegistry.ordinal(feature)] =
+                                SystemClock.elapsedRealtimeNanos() - start;
+                    }
+                }
+            }
+        });
+    }
+
+    private DisplayMode findDisplayMode(String id) {
+        if (id == null) {
+            return null;
+        }
+        final DisplayMode[] modes = mHwImpl.getDisplayModes();
+        if (modes != null) {
+            for (DisplayMode mode : modes) {
+                if (id.equals(String.valueOf(mode.id))) {
+                    return mode;
+                }
+            }
+        }
+        Log.w(TAG, "Persisted display mode " + id + " is no longer available");
+        return null;
+    }
+
+    // State changing calls, run on the feature's queue. What succeeds is persisted.
+
+    private boolean applyDisplayMode(DisplayMode mode, boolean makeDefault) {
+        final boolean success = mHwImpl.setDisplayMode(mode, makeDefault);
+        if (success && makeDefault && mode != null) {
+            mStateStore.put(KEY_DISPLAY_MODE, String.valueOf(mode.id));
+        }
+        return notifyIfChanged(DeviceHardwareManager.FEATURE_DISPLAY_MODES, success);
+    }
+
+    private boolean applyFingerprintNavigation(boolean canUse) {
+        final boolean success = mHwImpl.setFingerprintNavigation(canUse);
+        if (success) {
+            mStateStore.put(KEY_FINGERPRINT_NAVIGATION, canUse ? "1" : "0");
+        }
+        return notifyIfChanged(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION, success);
+    }
+
+    private boolean applyTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state) {
+        final boolean success = mHwImpl.setTouchscreenGestureEnabled(gesture, state);
+        if (success && gesture != null) {
+            mStateStore.put(KEY_GESTURE_PREFIX + gesture.id, state ? "1" : "0");
+        }
+        return notifyIfChanged(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES, success);
+    }
+
     @Override
     public void onStart() {
+        mHwImpl.startProbing();
+    }
+
+    /**
+     * Checks DEVICE_HARDWARE_ACCESS for the calling uid, like
+     * enforceCallingOrSelfPermission() but answered from a per-uid cache
+     * after the first call. The cache is dropped when packages or
+     * permissions change.
+     *
+     * Calls made from within system_server reach the stub directly through
+     * its local interface and are always allowed, as they would be by
+     * enforceCallingOrSelfPermission().
+     */
+    private void enforceAccessPermission() {
+        if (Binder.getCallingPid() == Process.myPid()) {
+            return;
+        }
+        final int uid = Binder.getCallingUid();
+        final int generation;
+        synchronized (mPermissionLock) {
+            final int index = mPermissionCache.indexOfKey(uid);
+            if (index >= 0) {
+                mPermissionCacheHits++;
+                if (!mPermissionCache.valueAt(index)) {
+                    throw newAccessDenied(uid);
+                }
+                return;
+            }
+            mPermissionCacheMisses++;
+            generation = mPermissionGeneration;
+        }
+
+        // A cross-service call, don't hold up the other binder threads with it
+        final boolean granted = mContext.checkCallingOrSelfPermission(
+                android.Manifest.permission.DEVICE_HARDWARE_ACCESS)
+                == PackageManager.PERMISSION_GRANTED;
+        synchronized (mPermissionLock) {
+            // Skip caching an answer that a package change may have outdated
+            if (generation == mPermissionGeneration) {
+                mPermissionCache.put(uid, granted);
+            }
+        }
+        if (!granted) {
+            throw newAccessDenied(uid);
+        }
+    }
+
+    private static SecurityException newAccessDenied(int uid) {
+        return new SecurityException("uid " + uid + " does not have "
+                + android.Manifest.permission.DEVICE_HARDWARE_ACCESS);
+    }
+
+    private void registerPermissionInvalidation() {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidatePermissionCache(intent.getIntExtra(Intent.EXTRA_UID, -1));
+            }
+        }, UserHandle.ALL, filter, null, null);
+
+        mContext.registerReceiverAsUser(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidatePermissionCache(intent.getIntExtra(Intent.EXTRA_UID, -1));
+            }
+        }, UserHandle.ALL, new IntentFilter(Intent.ACTION_UID_REMOVED), null, null);
+
+        mContext.getPackageManager().addOnPermissionsChangeListener(
+                new PackageManager.OnPermissionsChangedListener() {
+            @Override
+            public void onPermissionsChanged(int uid) {
+                invalidatePermissionCache(uid);
+            }
+        });
+    }
+
+    private void invalidatePermissionCache(int uid) {
+        synchronized (mPermissionLock) {
+            mPermissionGeneration++;
+            if (uid < 0) {
+                mPermissionCache.clear();
+            } else {
+                mPermissionCache.delete(uid);
+            }
+        }
+    }
+
+    private long getStateGeneration() {
+        synchronized (mStateLock) {
+            return mStateGeneration;
+        }
+    }
+
+    private boolean notifyIfChanged(int features, boolean changed) {
+        if (changed) {
+            notifyStateChanged(features);
+        }
+        return changed;
+    }
+
+    private void notifyStateChanged(int features) {
+        notifyStateChanged(features, 0);
+    }
+
+    /**
+     * Bumps the state generation and schedules a callback notification.
+     * Changes arriving before the notification goes out are merged into it.
+     *
+     * @param listChanges the features whose mode or gesture list changed,
+     *        clients drop their cached lists only for these
+     */
+    private void notifyStateChanged(int features, int listChanges) {
+        if (features == 0) {
+            return;
+        }
+        synchronized (mStateLock) {
+            mStateGeneration++;
+            mPendingChangedFeatures |= features;
+            mPendingListChanges |= listChanges;
+            if (mNotifyScheduled) {
+                return;
+            }
+            mNotifyScheduled = true;
+        }
+        BackgroundThread.getHandler().postDelayed(mNotifyCallbacks, NOTIFY_DELAY_MS);
+    }
+
+    private final Runnable mNotifyCallbacks = new Runnable() {
+        @Override
+        public void run() {
+            final int features;
+            final int listChanges;
+            final long generation;
+            synchronized (mStateLock) {
+                features = mPendingChangedFeatures;
+                listChanges = mPendingListChanges;
+                generation = mStateGeneration;
+                mPendingChangedFeatures = 0;
+                mPendingListChanges = 0;
+                mNotifyScheduled = false;
+            }
+            final int count = mCallbacks.beginBroadcast();
+            try {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        mCallbacks.getBroadcastItem(i).onHardwareStateChanged(
+                                features, listChanges, generation);
+                    } catch (RemoteException e) {
+                        // Dead callbacks are dropped by the RemoteCallbackList
+                    }
+                }
+            } finally {
+                mCallbacks.finishBroadcast();
+            }
+        }
+    };
+
+    private static final class DisplayModeRequest {
+        final DisplayMode mode;
+        final boolean makeDefault;
+
+        DisplayModeRequest(DisplayMode mode, boolean makeDefault) {
+            this.mode = mode;
+            this.makeDefault = makeDefault;
+        }
+    }
+
+    private SetRequestCoalescer<DisplayModeRequest> createDisplayModeCoalescer() {
+        final long windowMs = SystemProperties.getLong(PROP_COALESCE_WINDOW_MS,
+                DEFAULT_COALESCE_WINDOW_MS);
+        return new SetRequestCoalescer<DisplayModeRequest>("display mode", windowMs,
+                BackgroundThread.getHandler(),
+                mHwExecutor.executorFor(DeviceHardwareManager.FEATURE_DISPLAY_MODES,
+                        HardwareExecutor.PRIORITY_NORMAL),
+                new SetRequestCoalescer.Applier<DisplayModeRequest>() {
+            @Override
+            public boolean apply(DisplayModeRequest request) {
+                return applyDisplayMode(request.mode, request.makeDefault);
+            }
+
+            @Override
+            public boolean canReplace(DisplayModeRequest pending, DisplayModeRequest next) {
+                // Dropping a request that changes the default would lose it
+                return pending.makeDefault == next.makeDefault;
+            }
+        });
+    }
+
+    /**
+     * Waits for a coalesced request like {@link HardwareExecutor#call} does,
+     * at most {@link HardwareExecutor#CALL_TIMEOUT_MS}
+     */
+    private static boolean waitForResult(CompletableFuture<Boolean> future) {
+        try {
+            return future.get(HardwareExecutor.CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Hardware request failed", e.getCause());
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Hardware request timed out after "
+                    + HardwareExecutor.CALL_TIMEOUT_MS + "ms");
+        }
+        // The write may still happen, but this caller is done waiting
+        future.complete(false);
+        return false;
+    }
+
+    /**
+     * Runs a state-changing call on the feature's hardware queue and waits for it
+     */
+    private boolean callSet(int feature, Callable<Boolean> call) {
+        return mHwExecutor.call(feature, HardwareExecutor.PRIORITY_NORMAL, call, false);
+    }
+
+    /**
+     * Queues a state-changing call on the feature's hardware queue and
+     * reports the outcome to the callback
+     */
+    private void submitSet(final int feature, final Callable<Boolean> call,
+            final IDeviceHardwareResultCallback callback) {
+        mHwExecutor.executorFor(feature, HardwareExecutor.PRIORITY_NORMAL).execute(
+                new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    success = call.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Hardware call for " + FeatureRegistry.getName(feature)
+                            + " failed", e);
+                } finally {
+                    deliverResult(callback, success);
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #enforceAccessPermission}, but for oneway calls whose
+     * caller never sees an exception: a denied caller gets a failed result
+     *
+     * @return true if the caller may go on
+     */
+    private boolean checkAsyncAccess(IDeviceHardwareResultCallback callback) {
+        try {
+            enforceAccessPermission();
+            return true;
+        } catch (SecurityException e) {
+            Log.w(TAG, e.getMessage());
+            deliverResult(callback, false);
+            return false;
+        }
+    }
+
+    private static void deliverResult(IDeviceHardwareResultCallback callback, boolean success) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onResult(success);
+        } catch (RemoteException e) {
+            // The caller is gone, nobody to tell
+        }
     }
 
     private final IBinder mService = new IDeviceHardwareService.Stub() {
 
         private boolean isSupported(int feature) {
-            return (getSupportedFeatures() & feature) == feature;
+            // Callers have already been checked, don't go through getSupportedFeatures()
+            return mHwImpl.isSupported(feature);
         }
 
         @Override
         public int getSupportedFeatures() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             return mHwImpl.getSupportedFeatures();
         }
 
         @Override
         public boolean get(int feature) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
@@ -198,20 +901,23 @@ public class DeviceHardwareService extends HwSystemService {
         }
 
         @Override
-        public boolean set(int feature, boolean enable) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
-            if (!isSupported(feature)) {
+        public boolean set(final int feature, final boolean enable) {
+            enforceAccessPermission();
+            if (!isSupported(feature) || !FeatureRegistry.isFeature(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mHwImpl.set(feature, enable);
+            return callSet(feature, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return notifyIfChanged(feature, mHwImpl.set(feature, enable));
+                }
+            });
         }
 
         @Override
         public DisplayMode[] getDisplayModes() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -221,8 +927,7 @@ public class DeviceHardwareService extends HwSystemService {
 
         @Override
         public DisplayMode getCurrentDisplayMode() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -232,8 +937,7 @@ public class DeviceHardwareService extends HwSystemService {
 
         @Override
         public DisplayMode getDefaultDisplayMode() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -243,52 +947,67 @@ public class DeviceHardwareService extends HwSystemService {
 
         @Override
         public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return false;
             }
-            return mHwImpl.setDisplayMode(mode, makeDefault);
+            return waitForResult(mDisplayModeCoalescer.submit(
+                    new DisplayModeRequest(mode, makeDefault)));
         }
 
         @Override
-        public boolean setFingerprintNavigation(boolean canUse) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+        public boolean setFingerprintNavigation(final boolean canUse) {
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION)) {
                 Log.e(TAG, "Fingerprint navigation is not supported");
                 return false;
             }
-            return mHwImpl.setFingerprintNavigation(canUse);
+            return callSet(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION,
+                    new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return applyFingerprintNavigation(canUse);
+                }
+            });
         }
 
         @Override
         public boolean triStateReady() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_ALERT_SLIDER)) {
                 Log.e(TAG, "Alert slider is not supported");
                 return false;
             }
-            return mHwImpl.triStateReady(mContext);
+            return mHwExecutor.call(DeviceHardwareManager.FEATURE_ALERT_SLIDER,
+                    HardwareExecutor.PRIORITY_HIGH, new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mHwImpl.triStateReady(mContext);
+                }
+            }, false);
         }
 
         @Override
-        public KeyEvent handleTriStateEvent(KeyEvent event) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+        public KeyEvent handleTriStateEvent(final KeyEvent event) {
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_ALERT_SLIDER)) {
                 Log.e(TAG, "Alert slider is not supported");
                 return null;
             }
-            return mHwImpl.handleTriStateEvent(event);
+            // Input dispatch is waiting on this, it goes ahead of anything queued
+            return mHwExecutor.call(DeviceHardwareManager.FEATURE_ALERT_SLIDER,
+                    HardwareExecutor.PRIORITY_HIGH, new Callable<KeyEvent>() {
+                @Override
+                public KeyEvent call() {
+                    return mHwImpl.handleTriStateEvent(event);
+                }
+            }, null);
         }
 
         @Override
         public TouchscreenGesture[] getTouchscreenGestures() {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return null;
@@ -297,14 +1016,154 @@ public class DeviceHardwareService extends HwSystemService {
         }
 
         @Override
-        public boolean setTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state) {
-            mContext.enforceCallingOrSelfPermission(
-                    android.Manifest.permission.DEVICE_HARDWARE_ACCESS, null);
+        public boolean setTouchscreenGestureEnabled(final TouchscreenGesture gesture,
+                final boolean state) {
+            enforceAccessPermission();
             if (!isSupported(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return false;
             }
-            return mHwImpl.setTouchscreenGestureEnabled(gesture, state);
+            return callSet(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+                    new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return applyTouchscreenGestureEnabled(gesture, state);
+                }
+            });
+        }
+
+        @Override
+        public HardwareSnapshot getHardwareSnapshot() {
+            enforceAccessPermission();
+            final int supported = mHwImpl.getSupportedFeatures();
+            final boolean displayModes = FeatureRegistry.isSupported(supported,
+                    DeviceHardwareManager.FEATURE_DISPLAY_MODES);
+            final boolean gestures = FeatureRegistry.isSupported(supported,
+                    DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES);
+            return new HardwareSnapshot(supported,
+                    displayModes ? mHwImpl.getDisplayModes() : null,
+                    displayModes ? mHwImpl.getCurrentDisplayMode() : null,
+                    displayModes ? mHwImpl.getDefaultDisplayMode() : null,
+                    gestures ? mHwImpl.getTouchscreenGestures() : null,
+                    getStateGeneration());
+        }
+
+        @Override
+        public long getStateGeneration() {
+            enforceAccessPermission();
+            return DeviceHardwareService.this.getStateGeneration();
+        }
+
+        @Override
+        public void registerCallback(IDeviceHardwareCallback callback) {
+            enforceAccessPermission();
+            mCallbacks.register(callback);
+        }
+
+        @Override
+        public void unregisterCallback(IDeviceHardwareCallback callback) {
+            enforceAccessPermission();
+            mCallbacks.unregister(callback);
+        }
+
+        @Override
+        public void reportStateChanged(int features) {
+            enforceAccessPermission();
+            notifyStateChanged(features & FeatureRegistry.ALL_FEATURES);
+        }
+
+        @Override
+        public void setDisplayModeAsync(final DisplayMode mode, final boolean makeDefault,
+                final IDeviceHardwareResultCallback callback) {
+            if (!checkAsyncAccess(callback)) {
+                return;
+            }
+            if (!isSupported(DeviceHardwareManager.FEATURE_DISPLAY_MODES)) {
+                Log.e(TAG, "Display modes are not supported");
+                deliverResult(callback, false);
+                return;
+            }
+            mDisplayModeCoalescer.submit(new DisplayModeRequest(mode, makeDefault))
+                    .whenComplete(new BiConsumer<Boolean, Throwable>() {
+                @Override
+                public void accept(Boolean success, Throwable t) {
+                    deliverResult(callback, t == null && success);
+                }
+            });
+        }
+
+        @Override
+        public void setFingerprintNavigationAsync(final boolean canUse,
+                final IDeviceHardwareResultCallback callback) {
+            if (!checkAsyncAccess(callback)) {
+                return;
+            }
+            if (!isSupported(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION)) {
+                Log.e(TAG, "Fingerprint navigation is not supported");
+                deliverResult(callback, false);
+                return;
+            }
+            submitSet(DeviceHardwareManager.FEATURE_FINGERPRINT_NAVIGATION,
+                    new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return applyFingerprintNavigation(canUse);
+                }
+            }, callback);
+        }
+
+        @Override
+        public void setTouchscreenGestureEnabledAsync(final TouchscreenGesture gesture,
+                final boolean state, final IDeviceHardwareResultCallback callback) {
+            if (!checkAsyncAccess(callback)) {
+                return;
+            }
+            if (!isSupported(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
+                Log.e(TAG, "Touchscreen gestures are not supported");
+                deliverResult(callback, false);
+                return;
+            }
+            submitSet(DeviceHardwareManager.FEATURE_TOUCHSCREEN_GESTURES,
+                    new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return applyTouchscreenGestureEnabled(gesture, state);
+                }
+            }, callback);
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) {
+                return;
+            }
+            pw.println("DeviceHardwareService:");
+            pw.println("  supported features: 0x"
+                    + Integer.toHexString(mHwImpl.getSupportedFeatures()));
+            mHwImpl.dump(pw);
+            synchronized (mRestoreLock) {
+                if (mRestoreTotalNanos >= 0) {
+                    pw.println("  boot restore: " + (mRestoreTotalNanos / 1000) + "us total");
+                    for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+                        if (mRestoreNanos[i] > 0) {
+                            pw.println("    " + FeatureRegistry.getName(
+                                    FeatureRegistry.fromOrdinal(i)) + ": "
+                                    + (mRestoreNanos[i] / 1000) + "us");
+                        }
+                    }
+                }
+            }
+            synchronized (mPermissionLock) {
+                final long lookups = mPermissionCacheHits + mPermissionCacheMisses;
+                pw.println("  permission cache: " + mPermissionCache.size() + " uids, "
+                        + mPermissionCacheHits + " hits, " + mPermissionCacheMisses + " misses"
+                        + (lookups > 0 ? ", hit rate " + (mPermissionCacheHits * 100 / lookups)
+                                + "%" : ""));
+            }
+            mDisplayModeCoalescer.dump(pw);
+            mHwExecutor.dump(pw);
+            pw.println("  state generation: " + getStateGeneration() + ", "
+                    + mCallbacks.getRegisteredCallbackCount() + " callbacks");
         }
     };
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import aosip.hardware.FeatureRegistry;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs all calls into the hardware controllers.
+ *
+ * Every feature has its own serial queue, so writes to the same hardware
+ * never interleave while different features still run in parallel. Each
+ * queue has three priority lanes: input-path events go on
+ * {@link #PRIORITY_HIGH} and are taken before anything else queued for the
+ * feature, bulk and boot work goes on {@link #PRIORITY_LOW}. Ready queues
+ * share a small thread pool that also picks the queue with the most urgent
+ * head first. A high priority {@link #call} finding its queue idle runs
+ * right on the caller's thread, so input never waits for a pool thread.
+ */
+final class HardwareExecutor {
+    private static final String TAG = "HardwareExecutor";
+
+    static final int PRIORITY_HIGH = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_LOW = 2;
+    private static final int PRIORITY_COUNT = 3;
+    private static final String[] PRIORITY_NAMES = { "high", "normal", "low" };
+
+    private static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_MS = 10 * 1000;
+    static final long CALL_TIMEOUT_MS = 2000;
+
+    private final ThreadPoolExecutor mPool;
+    private final FeatureQueue[] mQueues = new FeatureQueue[FeatureRegistry.MAX_FEATURES];
+    private final AtomicInteger mSequence = new AtomicInteger();
+
+    // The queue whose task the current thread is running, if any
+    private static final ThreadLocal<FeatureQueue> sCurrentQueue = new ThreadLocal<FeatureQueue>();
+
+    HardwareExecutor() {
+        mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + "-" + mCount.incrementAndGet());
+            }
+        });
+        mPool.allowCoreThreadTimeOut(true);
+
+        for (int i = 0; i < FeatureRegistry.MAX_FEATURES; i++) {
+            final int feature = FeatureRegistry.fromOrdinal(i);
+            if (FeatureRegistry.isFeature(feature)) {
+                mQueues[i] = new FeatureQueue(feature);
+            }
+        }
+    }
+
+    /**
+     * Queues a task on the given feature's serial queue
+     *
+     * @return a future completed with the task's result, or exceptionally
+     *         with whatever the task threw
+     */
+    <T> CompletableFuture<T> submit(int feature, int priority, final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        getQueue(feature).enqueue(priority, new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    // The caller gave up waiting
+                    return;
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Runs a task on the given feature's serial queue and waits for it, at
+     * most {@link #CALL_TIMEOUT_MS}
+     *
+     * @return the task's result, or the fallback if it failed, timed out or
+     *         the wait was interrupted
+     */
+    <T> T call(int feature, int priority, Callable<T> task, T fallback) {
+        final FeatureQueue queue = getQueue(feature);
+        // Already serialized on this queue, waiting for ourselves would deadlock
+        final boolean nested = sCurrentQueue.get() == queue;
+        if (nested || (priority == PRIORITY_HIGH && queue.claim())) {
+            try {
+                return nested ? task.call() : queue.runClaimed(task);
+            } catch (Exception e) {
+                Log.e(TAG, "Hardware call for " + FeatureRegistry.getName(feature) + " failed", e);
+                return fallback;
+            }
+        }
+        final CompletableFuture<T> future = submit(feature, priority, task);
+        try {
+            return future.get(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Hardware call for " + FeatureRegistry.getName(feature) + " failed",
+                    e.getCause());
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Hardware call for " + FeatureRegistry.getName(feature)
+                    + " timed out after " + CALL_TIMEOUT_MS + "ms");
+        }
+        // Skip the task if it has not started yet
+        future.cancel(false);
+        return fallback;
+    }
+
+    /**
+     * @return an Executor that queues onto the given feature's serial queue
+     */
+    Executor executorFor(final int feature, final int priority) {
+        final FeatureQueue queue = getQueue(feature);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queue.enqueue(priority, command);
+            }
+        };
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  hardware executor: " + mPool.getPoolSize() + " threads, "
+                + mPool.getQueue().size() + " queues ready");
+        for (FeatureQueue queue : mQueues) {
+            if (queue != null) {
+                queue.dump(pw);
+            }
+        }
+    }
+
+    private FeatureQueue getQueue(int feature) {
+        final int ordinal = FeatureRegistry.ordinal(feature);
+        if (ordinal < 0) {
+            throw new IllegalArgumentException("Not a single feature: " + feature);
+        }
+        return mQueues[ordinal];
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueueTime;
+
+        Task(Runnable runnable, long enqueueTime) {
+            this.runnable = runnable;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+
+    private final class FeatureQueue {
+        private final int mFeature;
+
+        @GuardedBy("this")
+        private final ArrayDeque<Task>[] mLanes;
+        @GuardedBy("this")
+        private boolean mScheduled;
+
+        // Metrics, per lane
+        @GuardedBy("this")
+        private final int[] mMaxDepth = new int[PRIORITY_COUNT];
+        @GuardedBy("this")
+        private final long[] mExecuted = new long[PRIORITY_COUNT];
+        @GuardedBy("this")
+        private final long[] mTotalWaitNanos = new long[PRIORITY_COUNT];
+        @GuardedBy("this")
+        private final long[] mMaxWaitNanos = new long[PRIORITY_COUNT];
+
+        @SuppressWarnings("unchecked")
+        FeatureQueue(int feature) {
+            mFeature = feature;
+            mLanes = new ArrayDeque[PRIORITY_COUNT];
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                mLanes[i] = new ArrayDeque<Task>();
+            }
+        }
+
+        void enqueue(int priority, Runnable runnable) {
+            if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW) {
+                throw new IllegalArgumentException("Invalid priority " + priority);
+            }
+            synchronized (this) {
+                final ArrayDeque<Task> lane = mLanes[priority];
+                lane.add(new Task(runnable, SystemClock.elapsedRealtimeNanos()));
+                mMaxDepth[priority] = Math.max(mMaxDepth[priority], lane.size());
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mPool.execute(new Turn(this, priority));
+        }
+
+        /**
+         * Takes the queue for the calling thread if nothing is queued or running
+         *
+         * @return true if the caller has to run {@link #runClaimed} next
+         */
+        synchronized boolean claim() {
+            if (mScheduled) {
+                return false;
+            }
+            mScheduled = true;
+            mExecuted[PRIORITY_HIGH]++;
+            return true;
+        }
+
+        /**
+         * Runs a task on the calling thread after a successful {@link #claim}
+         * and hands whatever got queued meanwhile to the pool
+         */
+        <T> T runClaimed(Callable<T> task) throws Exception {
+            final FeatureQueue previous = sCurrentQueue.get();
+            sCurrentQueue.set(this);
+            try {
+                return task.call();
+            } finally {
+                sCurrentQueue.set(previous);
+                final int next = nextPriority();
+                if (next >= 0) {
+                    mPool.execute(new Turn(this, next));
+                }
+            }
+        }
+
+        /**
+         * Runs the most urgent pending task and schedules the next turn, if any
+         */
+        void runOne() {
+            Task task = null;
+            int priority;
+            synchronized (this) {
+                for (priority = 0; priority < PRIORITY_COUNT; priority++) {
+                    task = mLanes[priority].poll();
+                    if (task != null) {
+                        break;
+                    }
+                }
+                if (task == null) {
+                    mScheduled = false;
+                    return;
+                }
+                final long wait = SystemClock.elapsedRealtimeNanos() - task.enqueueTime;
+                mExecuted[priority]++;
+                mTotalWaitNanos[priority] += wait;
+                mMaxWaitNanos[priority] = Math.max(mMaxWaitNanos[priority], wait);
+            }
+
+            sCurrentQueue.set(this);
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Uncaught exception on " + FeatureRegistry.getName(mFeature), e);
+            } finally {
+                sCurrentQueue.set(null);
+                final int next = nextPriority();
+                if (next >= 0) {
+                    mPool.execute(new Turn(this, next));
+                }
+            }
+        }
+
+        private synchronized int nextPriority() {
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                if (!mLanes[i].isEmpty()) {
+                    return i;
+                }
+            }
+            mScheduled = false;
+            return -1;
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("    " + FeatureRegistry.getName(mFeature) + ":");
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                if (mExecuted[i] == 0 && mLanes[i].isEmpty()) {
+                    continue;
+                }
+                pw.println("      " + PRIORITY_NAMES[i] + ": depth " + mLanes[i].size()
+                        + " (max " + mMaxDepth[i] + "), " + mExecuted[i] + " run, wait avg "
+                        + (mExecuted[i] > 0 ? mTotalWaitNanos[i] / mExecuted[i] / 1000 : 0)
+                        + "us max " + (mMaxWaitNanos[i] / 1000) + "us");
+            }
+        }
+    }
+
+    /**
+     * One turn of a feature queue on the shared pool, ordered by the
+     * priority of the queue's head and then by arrival
+     */
+    private final class Turn implements Runnable, Comparable<Turn> {
+        private final FeatureQueue mQueue;
+        private final int mPriority;
+        private final int mSequence;
+
+        Turn(FeatureQueue queue, int priority) {
+            mQueue = queue;
+            mPriority = priority;
+            mSequence = HardwareExecutor.this.mSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            mQueue.runOne();
+        }
+
+        @Override
+        public int compareTo(Turn other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            // Wrap-safe arrival order
+            final int diff = mSequence - other.mSequence;
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aosip.server;
+
+import android.os.Handler;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Collapses bursts of set requests for one feature into a single hardware write.
+ *
+ * The first request of a burst is applied right away. Requests arriving
+ * while a write is queued or running replace each other, and the last one
+ * is applied once the write is done and the coalescing window has passed.
+ * Every caller whose request got replaced is completed with the outcome of
+ * the write that covered it.
+ */
+final class SetRequestCoalescer<T> {
+
+    interface Applier<T> {
+        /**
+         * Writes the value to the hardware
+         *
+         * @return true on success
+         */
+        boolean apply(T value);
+
+        /**
+         * @return true if the pending value may be dropped in favour of the next one
+         */
+        boolean canReplace(T pending, T next);
+    }
+
+    private final String mName;
+    private final long mWindowMs;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final Applier<T> mApplier;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private T mPending;
+    @GuardedBy("mLock")
+    private ArrayList<CompletableFuture<Boolean>> mWaiters =
+            new ArrayList<CompletableFuture<Boolean>>();
+    // Writes handed to the executor and not finished yet
+    @GuardedBy("mLock")
+    private int mWriting;
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+    @GuardedBy("mLock")
+    private long mApplied;
+    @GuardedBy("mLock")
+    private long mElided;
+
+    /**
+     * @param handler used to time the coalescing window after a write
+     * @param executor runs the hardware writes
+     */
+    SetRequestCoalescer(String name, long windowMs, Handler handler, Executor executor,
+            Applier<T> applier) {
+        mName = name;
+        mWindowMs = windowMs;
+        mHandler = handler;
+        mExecutor = executor;
+        mApplier = applier;
+    }
+
+    /**
+     * Queues a request for the given value
+     *
+     * @return a future completed with the outcome of the write that covered this request
+     */
+    CompletableFuture<Boolean> submit(T value) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        synchronized (mLock) {
+            if (!mWaiters.isEmpty() && !mApplier.canReplace(mPending, value)) {
+                // Apply what we have now, ordering is kept by the executor
+                flushLocked();
+            }
+            mPending = value;
+            mWaiters.add(future);
+            if (mWriting == 0 && !mFlushScheduled) {
+                // Not in a burst, don't make the caller wait for one
+                flushLocked();
+            }
+        }
+        return future;
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("  " + mName + ": window " + mWindowMs + "ms, " + mApplied
+                    + " writes applied, " + mElided + " elided");
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+                flushLocked();
+            }
+        }
+    };
+
+    private void flushLocked() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlush);
+            mFlushScheduled = false;
+        }
+        if (mWaiters.isEmpty()) {
+            return;
+        }
+        final T value = mPending;
+        final ArrayList<CompletableFuture<Boolean>> waiters = mWaiters;
+        mPending = null;
+        mWaiters = new ArrayList<CompletableFuture<Boolean>>();
+        mWriting++;
+        mApplied++;
+        mElided += waiters.size() - 1;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean result = false;
+                try {
+                    result = mApplier.apply(value);
+                } finally {
+                    for (CompletableFuture<Boolean> waiter : waiters) {
+                        waiter.complete(result);
+                    }
+                    onWriteDone();
+                }
+            }
+        });
+    }
+
+    private void onWriteDone() {
+        synchronized (mLock) {
+            mWriting--;
+            if (mWriting > 0 || mWaiters.isEmpty() || mFlushScheduled) {
+                return;
+            }
+            // Whatever came in meanwhile goes out once the window has passed
+            if (mWindowMs > 0) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, mWindowMs);
+            } else {
+                flushLocked();
+            }
+        }
+    }
+}
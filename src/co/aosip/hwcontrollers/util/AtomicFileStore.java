@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small persistent key/value store for controller state.
+ *
+ * The whole store is written to a temporary file, synced to disk and renamed
+ * over the previous version, so a crash or power loss leaves either the old
+ * or the new contents but never a torn file. Changes made within the commit
+ * delay of each other are written together, so a burst of updates costs a
+ * single fsync. Call {@link #flush()} where the caller must know the state
+ * is on disk.
+ *
+ * Keys must not contain '=' and neither keys nor values may contain line breaks.
+ */
+public final class AtomicFileStore {
+    private static final String TAG = "AtomicFileStore";
+
+    private static ScheduledThreadPoolExecutor sCommitter;
+
+    private final String mFileName;
+    private final String mTempFileName;
+    private final long mCommitDelayMs;
+
+    private final Object mCommitLock = new Object();
+    private final TreeMap<String, String> mValues = new TreeMap<String, String>();
+    private boolean mLoaded;
+    private boolean mDirty;
+    private ScheduledFuture<?> mPendingCommit;
+
+    public AtomicFileStore(String fileName, long commitDelayMs) {
+        mFileName = fileName;
+        mTempFileName = fileName + ".tmp";
+        mCommitDelayMs = commitDelayMs;
+    }
+
+    /**
+     * @return the value stored for the given key, or null if none
+     */
+    public synchronized String get(String key) {
+        loadLocked();
+        return mValues.get(key);
+    }
+
+    /**
+     * Stores the given value and schedules a commit
+     */
+    public void put(String key, String value) {
+        if (key.indexOf('=') >= 0 || key.indexOf('\n') >= 0 || value.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Invalid entry " + key);
+        }
+        synchronized (this) {
+            loadLocked();
+            if (value.equals(mValues.put(key, value))) {
+                return;
+            }
+            markDirtyLocked();
+        }
+    }
+
+    /**
+     * Removes the value stored for the given key and schedules a commit
+     */
+    public void remove(String key) {
+        synchronized (this) {
+            loadLocked();
+            if (mValues.remove(key) == null) {
+                return;
+            }
+            markDirtyLocked();
+        }
+    }
+
+    /**
+     * Writes any pending changes to disk before returning
+     *
+     * @return true if the store is on disk, false if writing it failed
+     */
+    public boolean flush() {
+        synchronized (this) {
+            if (mPendingCommit != null) {
+                mPendingCommit.cancel(false);
+                mPendingCommit = null;
+            }
+        }
+        return commit();
+    }
+
+    private void markDirtyLocked() {
+        mDirty = true;
+        if (mPendingCommit == null) {
+            mPendingCommit = getCommitter().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (AtomicFileStore.this) {
+                        mPendingCommit = null;
+                    }
+                    commit();
+                }
+            }, mCommitDelayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean commit() {
+        // Serializes writers of the temp file without blocking get() and put()
+        synchronized (mCommitLock) {
+            final StringBuilder contents = new StringBuilder();
+            synchronized (this) {
+                if (!mDirty) {
+                    return true;
+                }
+                for (Map.Entry<String, String> entry : mValues.entrySet()) {
+                    contents.append(entry.getKey()).append('=')
+                            .append(entry.getValue()).append('\n');
+                }
+                mDirty = false;
+            }
+
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(mTempFileName);
+                out.write(contents.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+                out.close();
+                out = null;
+                if (FileUtils.rename(mTempFileName, mFileName)) {
+                    return true;
+                }
+                Log.e(TAG, "Could not replace " + mFileName);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write " + mTempFileName, e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // Ignored, not much we can do anyway
+                }
+            }
+
+            FileUtils.delete(mTempFileName);
+            synchronized (this) {
+                // Try again with the next change or flush
+                mDirty = true;
+            }
+            return false;
+        }
+    }
+
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        // A leftover temp file is an interrupted commit, the old file is authoritative
+        FileUtils.delete(mTempFileName);
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFileName), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int split = line.indexOf('=');
+                if (split > 0) {
+                    mValues.put(line.substring(0, split), line.substring(split + 1));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing stored yet
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFileName, e);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // Ignored, not much we can do anyway
+            }
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getCommitter() {
+        if (sCommitter == null) {
+            sCommitter = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sCommitter;
+    }
+}
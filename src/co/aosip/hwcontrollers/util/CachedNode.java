@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * Write-through cache of a single node's value on top of {@link FileUtils}.
+ *
+ * Remembers the last value read from or written to the node, serves reads
+ * from it and skips writes of the value the node already holds. Controllers
+ * opt in by going through a CachedNode instead of FileUtils for nodes whose
+ * value only changes when written from userspace, such as display mode or
+ * gesture enable nodes. Writes that bypass the node must invalidate it.
+ *
+ * A cached value is trusted for the configured maximum age, which defaults to
+ * {@link #NO_EXPIRY}. Nodes the kernel may change on its own, e.g. across
+ * suspend, should set a finite age or be invalidated when that happens.
+ */
+public final class CachedNode {
+    /**
+     * Cached values never expire and are only dropped by invalidation
+     */
+    public static final long NO_EXPIRY = -1;
+
+    private static final HashMap<String, CachedNode> sNodes = new HashMap<String, CachedNode>();
+
+    private final String mFileName;
+    private long mMaxAgeMs = NO_EXPIRY;
+
+    private String mValue;
+    private long mValueTime;
+    private int mSuppressedWrites;
+
+    private CachedNode(String fileName) {
+        mFileName = fileName;
+    }
+
+    /**
+     * Get the cached node for the given file, creating it on first use.
+     * All callers share one instance per file.
+     */
+    public static CachedNode get(String fileName) {
+        synchronized (sNodes) {
+            CachedNode node = sNodes.get(fileName);
+            if (node == null) {
+                node = new CachedNode(fileName);
+                sNodes.put(fileName, node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Drops the cached value of the given file, if it is cached
+     */
+    public static void invalidatePath(String fileName) {
+        final CachedNode node;
+        synchronized (sNodes) {
+            node = sNodes.get(fileName);
+        }
+        if (node != null) {
+            node.invalidate();
+        }
+    }
+
+    /**
+     * Drops every cached value, e.g. after resume or a driver reload
+     */
+    public static void invalidateAll() {
+        final CachedNode[] nodes;
+        synchronized (sNodes) {
+            nodes = sNodes.values().toArray(new CachedNode[sNodes.size()]);
+        }
+        for (CachedNode node : nodes) {
+            node.invalidate();
+        }
+    }
+
+    public String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Sets how long a cached value is trusted, in milliseconds,
+     * or {@link #NO_EXPIRY}
+     *
+     * @return this node
+     */
+    public synchronized CachedNode setMaxAge(long maxAgeMs) {
+        mMaxAgeMs = maxAgeMs;
+        return this;
+    }
+
+    /**
+     * Reads the node, from the cache if the cached value is still fresh
+     *
+     * @return the value, or null on failure
+     */
+    public synchronized String read() {
+        if (isFreshLocked()) {
+            return mValue;
+        }
+        final String value = FileUtils.readOneLine(mFileName);
+        setValueLocked(value);
+        return value;
+    }
+
+    /**
+     * Writes the given value unless the node is known to hold it already
+     *
+     * @return true on success or if the write was skipped, false on failure
+     */
+    public synchronized boolean write(String value) {
+        if (value.equals(mValue) && isFreshLocked()) {
+            mSuppressedWrites++;
+            return true;
+        }
+        if (!FileUtils.writeLine(mFileName, value)) {
+            // The node may have been left in any state
+            setValueLocked(null);
+            return false;
+        }
+        setValueLocked(value);
+        return true;
+    }
+
+    /**
+     * Drops the cached value so the next read goes to the node
+     * and the next write is never skipped
+     */
+    public synchronized void invalidate() {
+        mValue = null;
+    }
+
+    /**
+     * @return how many writes were skipped because the node held the value
+     */
+    public synchronized int getSuppressedWrites() {
+        return mSuppressedWrites;
+    }
+
+    private boolean isFreshLocked() {
+        if (mValue == null) {
+            return false;
+        }
+        return mMaxAgeMs == NO_EXPIRY
+                || SystemClock.elapsedRealtime() - mValueTime < mMaxAgeMs;
+    }
+
+    private void setValueLocked(String value) {
+        mValue = value;
+        mValueTime = SystemClock.elapsedRealtime();
+    }
+}
@@ -19,18 +19,30 @@ package co.aosip.hwcontrollers.util;
 import android.util.Log;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.NullPointerException;
 import java.lang.SecurityException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 
 public final class FileUtils {
     private static final String TAG = "FileUtils";
 
+    // Sysfs attributes never exceed a page; longer lines grow the buffer
+    private static final int LINE_BUFFER_SIZE = 4096;
+
+    // Large enough for any decimal or hex long plus sign and line ending
+    private static final int NUMBER_BUFFER_SIZE = 32;
+
+    private static final ThreadLocal<ByteBuffer> sNumberBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(NUMBER_BUFFER_SIZE);
+        }
+    };
+
     private FileUtils() {
         // This class is not supposed to be instantiated
     }
@@ -42,27 +54,43 @@ public final class FileUtils {
      * @return the read line contents, or null on failure
      */
     public static String readOneLine(String fileName) {
-        String line = null;
-        BufferedReader reader = null;
+        final NodeFailureTracker tracker = NodeFailureTracker.getInstance();
+        if (!tracker.allowAttempt(fileName, false)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(LINE_BUFFER_SIZE);
 
         try {
-            reader = new BufferedReader(new FileReader(fileName), 512);
-            line = reader.readLine();
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, "No such file " + fileName + " for reading", e);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not read from file " + fileName, e);
-        } finally {
-            try {
-                if (reader != null) {
-                    reader.close();
+            int scanned = 0;
+            while (true) {
+                final int count = NodeHandlePool.getInstance().read(
+                        fileName, buffer, buffer.position());
+                final int end = buffer.position();
+                for (int i = scanned; i < end; i++) {
+                    final byte b = buffer.get(i);
+                    if (b == '\n' || b == '\r') {
+                        tracker.onSuccess(fileName, false);
+                        return new String(buffer.array(), 0, i, StandardCharsets.UTF_8);
+                    }
+                }
+                scanned = end;
+                if (count < 0) {
+                    tracker.onSuccess(fileName, false);
+                    return end > 0
+                            ? new String(buffer.array(), 0, end, StandardCharsets.UTF_8) : null;
+                }
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
                 }
-            } catch (IOException e) {
-                // Ignored, not much we can do anyway
             }
+        } catch (IOException e) {
+            tracker.onFailure(fileName, false, e);
         }
 
-        return line;
+        return null;
     }
 
     /**
@@ -71,58 +99,260 @@ public final class FileUtils {
      * @return true on success, false on failure
      */
     public static boolean writeLine(String fileName, String value) {
-        BufferedWriter writer = null;
+        return write(fileName, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        try {
-            writer = new BufferedWriter(new FileWriter(fileName));
-            writer.write(value);
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, "No such file " + fileName + " for writing", e);
+    /**
+     * Reads the first line of text from the given file on the node I/O
+     * executor. Requests for the same file complete in submission order.
+     *
+     * @return a future completed with the read line contents, or null on
+     *         failure, or exceptionally if reading threw
+     */
+    public static CompletableFuture<String> readOneLineAsync(final String fileName) {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        NodeIoExecutor.getInstance().execute(fileName, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(readOneLine(fileName));
+                } catch (RuntimeException e) {
+                    // The executor only logs what escapes, don't leave the caller hanging
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Writes the given value into the given file on the node I/O executor.
+     * Writes to the same file are applied in submission order.
+     *
+     * @return a future completed with true on success, false on failure, or
+     *         exceptionally if writing threw, e.g. for a null value
+     */
+    public static CompletableFuture<Boolean> writeLineAsync(final String fileName,
+            final String value) {
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+        NodeIoExecutor.getInstance().execute(fileName, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(writeLine(fileName, value));
+                } catch (RuntimeException e) {
+                    // The executor only logs what escapes, don't leave the caller hanging
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Reads a decimal or 0x-prefixed hexadecimal integer from the given file
+     * without allocating.
+     *
+     * @return the parsed value, or defValue on failure or if out of range
+     */
+    public static int readInt(String fileName, int defValue) {
+        final long value = readLong(fileName, Long.MIN_VALUE);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return defValue;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads a decimal or 0x-prefixed hexadecimal long from the given file
+     * without allocating.
+     *
+     * @return the parsed value, or defValue on failure
+     */
+    public static long readLong(String fileName, long defValue) {
+        final ByteBuffer buffer = readNumberBuffer(fileName);
+        if (buffer == null) {
+            return defValue;
+        }
+
+        final int end = buffer.position();
+        int i = skipBlanks(buffer, 0, end);
+        boolean negative = false;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        int radix = 10;
+        if (i + 1 < end && buffer.get(i) == '0'
+                && (buffer.get(i + 1) == 'x' || buffer.get(i + 1) == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+
+        // Accumulate negatively so that Long.MIN_VALUE can be represented
+        final long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        final long multMin = limit / radix;
+        long result = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            final int digit = Character.digit(buffer.get(i), radix);
+            if (digit < 0) {
+                break;
+            }
+            if (result < multMin) {
+                return defValue;
+            }
+            result *= radix;
+            if (result < limit + digit) {
+                return defValue;
+            }
+            result -= digit;
+            digits++;
+        }
+        if (digits == 0 || skipBlanks(buffer, i, end) != end) {
+            return defValue;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Reads a boolean from the given file without allocating. Accepts
+     * 1/0 as well as the Y/N the kernel prints for boolean parameters.
+     *
+     * @return the parsed value, or defValue on failure
+     */
+    public static boolean readBoolean(String fileName, boolean defValue) {
+        final ByteBuffer buffer = readNumberBuffer(fileName);
+        if (buffer == null) {
+            return defValue;
+        }
+
+        final int end = buffer.position();
+        final int i = skipBlanks(buffer, 0, end);
+        if (i == end || skipBlanks(buffer, i + 1, end) != end) {
+            return defValue;
+        }
+        switch (buffer.get(i)) {
+            case '1':
+            case 'Y':
+            case 'y':
+                return true;
+            case '0':
+            case 'N':
+            case 'n':
+                return false;
+            default:
+                return defValue;
+        }
+    }
+
+    /**
+     * Writes the given value in decimal into the given file without allocating
+     *
+     * @return true on success, false on failure
+     */
+    public static boolean writeInt(String fileName, int value) {
+        final ByteBuffer buffer = sNumberBuffer.get();
+        buffer.clear();
+
+        // Format digits backwards from the end of the buffer
+        int pos = buffer.capacity();
+        long remaining = Math.abs((long) value);
+        do {
+            buffer.put(--pos, (byte) ('0' + (remaining % 10)));
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            buffer.put(--pos, (byte) '-');
+        }
+        buffer.position(pos);
+
+        return write(fileName, buffer);
+    }
+
+    private static boolean write(String fileName, ByteBuffer src) {
+        final NodeFailureTracker tracker = NodeFailureTracker.getInstance();
+        if (!tracker.allowAttempt(fileName, true)) {
             return false;
+        }
+
+        try {
+            NodeHandlePool.getInstance().write(fileName, src);
         } catch (IOException e) {
-            Log.e(TAG, "Could not write to file " + fileName, e);
+            tracker.onFailure(fileName, true, e);
             return false;
-        } finally {
-            try {
-                if (writer != null) {
-                    writer.close();
-                }
-            } catch (IOException e) {
-                // Ignored, not much we can do anyway
-            }
         }
 
+        tracker.onSuccess(fileName, true);
         return true;
     }
 
     /**
-     * Checks whether the given file exists
+     * Reads the start of the given file into this thread's number buffer
+     *
+     * @return the buffer with position set to the number of bytes read,
+     *         or null on failure or if the file is empty
+     */
+    private static ByteBuffer readNumberBuffer(String fileName) {
+        final NodeFailureTracker tracker = NodeFailureTracker.getInstance();
+        if (!tracker.allowAttempt(fileName, false)) {
+            return null;
+        }
+        final ByteBuffer buffer = sNumberBuffer.get();
+        buffer.clear();
+
+        try {
+            final int count = NodeHandlePool.getInstance().read(fileName, buffer, 0);
+            tracker.onSuccess(fileName, false);
+            return count > 0 ? buffer : null;
+        } catch (IOException e) {
+            tracker.onFailure(fileName, false, e);
+        }
+
+        return null;
+    }
+
+    private static int skipBlanks(ByteBuffer buffer, int from, int end) {
+        while (from < end) {
+            final byte b = buffer.get(from);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Checks whether the given file exists.
+     * The result is cached, see {@link NodeCapabilities}
      *
      * @return true if exists, false if not
      */
     public static boolean fileExists(String fileName) {
-        final File file = new File(fileName);
-        return file.exists();
+        return NodeCapabilities.has(fileName, NodeCapabilities.FLAG_EXISTS);
     }
 
     /**
-     * Checks whether the given file is readable
+     * Checks whether the given file is readable.
+     * The result is cached, see {@link NodeCapabilities}
      *
      * @return true if readable, false if not
      */
     public static boolean isFileReadable(String fileName) {
-        final File file = new File(fileName);
-        return file.exists() && file.canRead();
+        return NodeCapabilities.has(fileName,
+                NodeCapabilities.FLAG_EXISTS | NodeCapabilities.FLAG_READABLE);
     }
 
     /**
-     * Checks whether the given file is writable
+     * Checks whether the given file is writable.
+     * The result is cached, see {@link NodeCapabilities}
      *
      * @return true if writable, false if not
      */
     public static boolean isFileWritable(String fileName) {
-        final File file = new File(fileName);
-        return file.exists() && file.canWrite();
+        return NodeCapabilities.has(fileName,
+                NodeCapabilities.FLAG_EXISTS | NodeCapabilities.FLAG_WRITABLE);
     }
 
     /**
@@ -138,6 +368,8 @@ public final class FileUtils {
         } catch (SecurityException e) {
             Log.w(TAG, "SecurityException trying to delete " + fileName, e);
         }
+        NodeCapabilities.invalidate(fileName);
+        NodeHandlePool.getInstance().evict(fileName);
         return ok;
     }
 
@@ -157,6 +389,10 @@ public final class FileUtils {
         } catch (NullPointerException e) {
             Log.e(TAG, "NullPointerException trying to rename " + srcPath + " to " + dstPath, e);
         }
+        NodeCapabilities.invalidate(srcPath);
+        NodeCapabilities.invalidate(dstPath);
+        NodeHandlePool.getInstance().evict(srcPath);
+        NodeHandlePool.getInstance().evict(dstPath);
         return ok;
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers whether nodes exist and can be read or written.
+ *
+ * Each path is probed once and the result is kept as a small set of flags,
+ * so the existence and permission checks behind the controllers'
+ * isSupported() become a table lookup. The flags fit in the boxed Integer
+ * cache, so lookups do not allocate.
+ *
+ * Results are kept until invalidated, either explicitly or by
+ * {@link NodeWatcher} when a watched node is created, deleted or changes
+ * between readable and unreadable. Sysfs and procfs nodes get no inotify
+ * events and may appear with a late driver load or be chowned by init
+ * after boot, so for them a missing or denied result is only trusted for
+ * {@link #KERNEL_NODE_RETRY_MS} before the node is probed again.
+ */
+public final class NodeCapabilities {
+    public static final int FLAG_EXISTS = 1 << 0;
+    public static final int FLAG_READABLE = 1 << 1;
+    public static final int FLAG_WRITABLE = 1 << 2;
+
+    private static final int FLAG_ALL = FLAG_EXISTS | FLAG_READABLE | FLAG_WRITABLE;
+    private static final long KERNEL_NODE_RETRY_MS = 5 * 1000;
+
+    private static final ConcurrentHashMap<String, Integer> sFlags =
+            new ConcurrentHashMap<String, Integer>();
+    // When incomplete results for kernel nodes expire
+    private static final ConcurrentHashMap<String, Long> sRetryAt =
+            new ConcurrentHashMap<String, Long>();
+
+    private NodeCapabilities() {
+        // This class is not supposed to be instantiated
+    }
+
+    /**
+     * Get the capabilities of the given file, probing it on first use
+     *
+     * @return a combination of the FLAG_* values
+     */
+    public static int get(String fileName) {
+        Integer flags = sFlags.get(fileName);
+        if (flags != null && flags != FLAG_ALL) {
+            final Long retryAt = sRetryAt.get(fileName);
+            if (retryAt != null && SystemClock.elapsedRealtime() >= retryAt) {
+                flags = null;
+            }
+        }
+        if (flags == null) {
+            flags = probe(fileName);
+            if (flags != FLAG_ALL && isKernelNode(fileName)) {
+                sRetryAt.put(fileName, SystemClock.elapsedRealtime() + KERNEL_NODE_RETRY_MS);
+            } else {
+                sRetryAt.remove(fileName);
+            }
+            sFlags.put(fileName, flags);
+        }
+        return flags;
+    }
+
+    /**
+     * @return true if the given file has all of the given flags
+     */
+    public static boolean has(String fileName, int flags) {
+        return (get(fileName) & flags) == flags;
+    }
+
+    /**
+     * Forgets the capabilities of the given file so it is probed again
+     */
+    public static void invalidate(String fileName) {
+        sFlags.remove(fileName);
+        sRetryAt.remove(fileName);
+    }
+
+    /**
+     * Forgets the capabilities of all files
+     */
+    public static void invalidateAll() {
+        sFlags.clear();
+        sRetryAt.clear();
+    }
+
+    private static boolean isKernelNode(String fileName) {
+        return fileName.startsWith("/sys/") || fileName.startsWith("/proc/");
+    }
+
+    private static int probe(String fileName) {
+        final File file = new File(fileName);
+        if (!file.exists()) {
+            return 0;
+        }
+        int flags = FLAG_EXISTS;
+        if (file.canRead()) {
+            flags |= FLAG_READABLE;
+        }
+        if (file.canWrite()) {
+            flags |= FLAG_WRITABLE;
+        }
+        return flags;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks I/O failures per node to keep broken nodes from flooding the log
+ * and burning CPU.
+ *
+ * Reads and writes of a node are tracked separately, so a node that can
+ * only be written does not lose its read failure history on every write.
+ * The first failure of a kind is logged with its stack trace; identical
+ * failures after that are only counted and reported in a one-line summary
+ * at most every {@link #SUMMARY_INTERVAL_MS}.
+ *
+ * Only failures meaning the node itself is broken (gone, no device behind
+ * it, I/O error) count towards the breaker; errors such as EINVAL for a
+ * bad value are the caller's. After {@link #FAILURE_THRESHOLD} consecutive
+ * broken-node failures in one direction its breaker opens and further
+ * attempts fail fast without touching the node, except for a single probe
+ * every probe interval, which backs off while the node stays broken. An
+ * attempt that reaches the node closes the breaker again.
+ *
+ * Nodes without failures have no entry, so the checks on the success path
+ * are a single map lookup.
+ */
+final class NodeFailureTracker {
+    private static final String TAG = "FileUtils";
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long SUMMARY_INTERVAL_MS = 60 * 1000;
+    private static final long MIN_PROBE_INTERVAL_MS = 5 * 1000;
+    private static final long MAX_PROBE_INTERVAL_MS = 5 * 60 * 1000;
+
+    private static final NodeFailureTracker sInstance = new NodeFailureTracker();
+
+    private final ConcurrentHashMap<String, NodeState> mReadStates =
+            new ConcurrentHashMap<String, NodeState>();
+    private final ConcurrentHashMap<String, NodeState> mWriteStates =
+            new ConcurrentHashMap<String, NodeState>();
+
+    static NodeFailureTracker getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return false if the node's breaker is open and the caller should
+     *         fail without attempting any I/O
+     */
+    boolean allowAttempt(String fileName, boolean write) {
+        final NodeState state = getStates(write).get(fileName);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            if (!state.mOpen) {
+                return true;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            if (state.mProbing || now < state.mNextProbe) {
+                state.mRejected++;
+                return false;
+            }
+            // Half-open: let exactly one caller find out whether the node recovered
+            state.mProbing = true;
+            return true;
+        }
+    }
+
+    void onSuccess(String fileName, boolean write) {
+        final ConcurrentHashMap<String, NodeState> states = getStates(write);
+        if (states.isEmpty()) {
+            return;
+        }
+        final NodeState state = states.remove(fileName);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.mOpen || state.mSuppressed > 0) {
+                Log.i(TAG, fileName + " recovered after " + state.mConsecutive
+                        + " consecutive failures");
+            }
+        }
+    }
+
+    void onFailure(String fileName, boolean write, IOException e) {
+        final ConcurrentHashMap<String, NodeState> states = getStates(write);
+        NodeState state = states.get(fileName);
+        if (state == null) {
+            final NodeState created = new NodeState();
+            state = states.putIfAbsent(fileName, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final boolean broken = isNodeBroken(e);
+        synchronized (state) {
+            final String signature = e.getClass().getName() + ": " + e.getMessage();
+            if (!signature.equals(state.mLastSignature)) {
+                state.mLastSignature = signature;
+                flushSummaryLocked(fileName, state, now);
+                log(fileName, write, e);
+            } else {
+                state.mSuppressed++;
+                if (now - state.mLastSummary >= SUMMARY_INTERVAL_MS) {
+                    flushSummaryLocked(fileName, state, now);
+                }
+            }
+
+            if (!broken) {
+                // The node answered, whatever was wrong is up to the caller
+                if (state.mOpen) {
+                    Log.i(TAG, fileName + " responding again after " + state.mConsecutive
+                            + " consecutive failures");
+                }
+                state.mConsecutive = 0;
+                state.mOpen = false;
+                state.mProbing = false;
+                return;
+            }
+
+            state.mConsecutive++;
+            if (state.mProbing) {
+                // Probe failed, stay open and wait longer for the next one
+                state.mProbing = false;
+                state.mProbeInterval = Math.min(state.mProbeInterval * 2, MAX_PROBE_INTERVAL_MS);
+                state.mNextProbe = now + state.mProbeInterval;
+            } else if (!state.mOpen && state.mConsecutive >= FAILURE_THRESHOLD) {
+                state.mOpen = true;
+                state.mProbeInterval = MIN_PROBE_INTERVAL_MS;
+                state.mNextProbe = now + state.mProbeInterval;
+                Log.w(TAG, "Giving up on " + fileName + " after " + state.mConsecutive
+                        + " consecutive failures, retrying every "
+                        + (MIN_PROBE_INTERVAL_MS / 1000) + "s or more");
+            }
+        }
+    }
+
+    private ConcurrentHashMap<String, NodeState> getStates(boolean write) {
+        return write ? mWriteStates : mReadStates;
+    }
+
+    /**
+     * @return true if the failure means the node is gone or its device is
+     *         not working, rather than the request being refused
+     */
+    static boolean isNodeBroken(IOException e) {
+        if (e instanceof NoSuchFileException) {
+            return true;
+        }
+        final Throwable cause = e.getCause();
+        if (cause instanceof ErrnoException) {
+            return isBrokenErrno(((ErrnoException) cause).errno);
+        }
+        // Android reports most errors only by their strerror() message
+        final String message = e.getMessage();
+        if (message == null) {
+            return false;
+        }
+        // FileNotFoundException is also thrown for EACCES, so go by the message alone
+        return message.contains("No such file or directory")
+                || message.contains("No such device")
+                || message.contains("I/O error")
+                || message.contains("Input/output error");
+    }
+
+    private static boolean isBrokenErrno(int errno) {
+        return errno == OsConstants.ENOENT || errno == OsConstants.ENODEV
+                || errno == OsConstants.ENXIO || errno == OsConstants.EIO;
+    }
+
+    private static void flushSummaryLocked(String fileName, NodeState state, long now) {
+        if (state.mSuppressed > 0 || state.mRejected > 0) {
+            Log.w(TAG, fileName + ": " + state.mSuppressed + " more failures and "
+                    + state.mRejected + " rejected attempts in the last "
+                    + ((now - state.mLastSummary) / 1000) + "s");
+        }
+        state.mSuppressed = 0;
+        state.mRejected = 0;
+        state.mLastSummary = now;
+    }
+
+    private static void log(String fileName, boolean write, IOException e) {
+        final boolean missing = e instanceof FileNotFoundException
+                || e instanceof NoSuchFileException;
+        if (missing) {
+            Log.w(TAG, "No such file " + fileName + " for " + (write ? "writing" : "reading"), e);
+        } else if (write) {
+            Log.e(TAG, "Could not write to file " + fileName, e);
+        } else {
+            Log.e(TAG, "Could not read from file " + fileName, e);
+        }
+    }
+
+    private static final class NodeState {
+        int mConsecutive;
+        int mSuppressed;
+        int mRejected;
+        String mLastSignature;
+        long mLastSummary;
+        boolean mOpen;
+        boolean mProbing;
+        long mProbeInterval;
+        long mNextProbe;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps file channels to frequently accessed nodes open between calls.
+ *
+ * Sysfs and procfs attributes regenerate their contents on every read from
+ * offset zero and accept a whole value per write, so a single descriptor can
+ * be reused with positional reads and writes instead of being reopened each
+ * time. Regular files are opened for every call instead, as another process
+ * may replace them and a pooled descriptor would keep reading the old inode.
+ *
+ * While the pool holds handles, a sweep runs every {@link #IDLE_TIMEOUT_MS}
+ * and closes those not used since the last one, so nothing stays open once
+ * node I/O stops. A handle that fails in any way is dropped, so a descriptor
+ * left dead by a driver unbind or reload is never reused and the next call
+ * opens the node again. Failures that are known to mean exactly that are
+ * retried once right away.
+ */
+public final class NodeHandlePool {
+    private static final String TAG = "NodeHandlePool";
+
+    private static final long IDLE_TIMEOUT_MS = 60 * 1000;
+    private static final int MAX_HANDLES = 32;
+
+    private static final NodeHandlePool sInstance = new NodeHandlePool();
+
+    private final HashMap<String, NodeHandle> mHandles = new HashMap<String, NodeHandle>();
+    // Both guarded by mHandles
+    private boolean mSweepScheduled;
+    private ScheduledThreadPoolExecutor mSweeper;
+
+    private NodeHandlePool() {
+    }
+
+    public static NodeHandlePool getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Reads from the given file at the given position into dst
+     *
+     * @return the number of bytes read, or -1 at end of file
+     */
+    public int read(String fileName, ByteBuffer dst, long position) throws IOException {
+        if (!isKernelNode(fileName)) {
+            return readFile(fileName, dst, position);
+        }
+        final int start = dst.position();
+        NodeHandle handle = acquire(fileName);
+        try {
+            return handle.read(dst, position);
+        } catch (IOException e) {
+            // Android reports most errors without an errno, never trust the descriptor again
+            evict(fileName, handle);
+            if (!isStale(e)) {
+                throw e;
+            }
+            // The node went away underneath us, retry once on a fresh descriptor
+            dst.position(start);
+            handle = acquire(fileName);
+            try {
+                return handle.read(dst, position);
+            } catch (IOException retryError) {
+                evict(fileName, handle);
+                throw retryError;
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the given file with the remaining bytes of src
+     */
+    public void write(String fileName, ByteBuffer src) throws IOException {
+        if (!isKernelNode(fileName)) {
+            writeFile(fileName, src);
+            return;
+        }
+        final int start = src.position();
+        NodeHandle handle = acquire(fileName);
+        try {
+            handle.write(src);
+        } catch (IOException e) {
+            evict(fileName, handle);
+            if (!isStale(e)) {
+                throw e;
+            }
+            src.position(start);
+            handle = acquire(fileName);
+            try {
+                handle.write(src);
+            } catch (IOException retryError) {
+                evict(fileName, handle);
+                throw retryError;
+            }
+        }
+    }
+
+    /**
+     * Closes the pooled handle of the given file, if any
+     */
+    public void evict(String fileName) {
+        final NodeHandle handle;
+        synchronized (mHandles) {
+            handle = mHandles.remove(fileName);
+        }
+        if (handle != null) {
+            handle.close();
+        }
+    }
+
+    /**
+     * Closes the given handle, and drops it from the pool unless another
+     * thread has already replaced it
+     */
+    private void evict(String fileName, NodeHandle handle) {
+        synchronized (mHandles) {
+            if (mHandles.get(fileName) == handle) {
+                mHandles.remove(fileName);
+            }
+        }
+        handle.close();
+    }
+
+    /**
+     * Closes every pooled handle
+     */
+    public void clear() {
+        final NodeHandle[] handles;
+        synchronized (mHandles) {
+            handles = mHandles.values().toArray(new NodeHandle[mHandles.size()]);
+            mHandles.clear();
+        }
+        for (NodeHandle handle : handles) {
+            handle.close();
+        }
+    }
+
+    private NodeHandle acquire(String fileName) {
+        final long now = SystemClock.elapsedRealtime();
+        ArrayList<NodeHandle> expired = null;
+        final NodeHandle handle;
+        synchronized (mHandles) {
+            if (mHandles.size() >= MAX_HANDLES) {
+                expired = sweepLocked(now);
+            }
+            NodeHandle existing = mHandles.get(fileName);
+            if (existing == null) {
+                existing = new NodeHandle(fileName);
+                mHandles.put(fileName, existing);
+                scheduleSweepLocked();
+            }
+            existing.mLastUsed = now;
+            handle = existing;
+        }
+        if (expired != null) {
+            // Closing waits for any I/O still running on the handle, keep
+            // that out of the pool lock
+            for (NodeHandle old : expired) {
+                old.close();
+            }
+        }
+        return handle;
+    }
+
+    private void scheduleSweepLocked() {
+        if (mSweepScheduled) {
+            return;
+        }
+        mSweepScheduled = true;
+        if (mSweeper == null) {
+            mSweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // Nothing to sweep between bursts of node I/O, let the thread go
+            mSweeper.setKeepAliveTime(IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mSweeper.allowCoreThreadTimeOut(true);
+        }
+        mSweeper.schedule(mSweep, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<NodeHandle> expired;
+            synchronized (mHandles) {
+                mSweepScheduled = false;
+                expired = sweepLocked(SystemClock.elapsedRealtime());
+                if (!mHandles.isEmpty()) {
+                    scheduleSweepLocked();
+                }
+            }
+            for (NodeHandle handle : expired) {
+                handle.close();
+            }
+        }
+    };
+
+    /**
+     * Drops idle handles, and the least recently used one if the pool is full
+     *
+     * @return the dropped handles, for the caller to close outside the lock
+     */
+    private ArrayList<NodeHandle> sweepLocked(long now) {
+        final ArrayList<NodeHandle> expired = new ArrayList<NodeHandle>();
+        NodeHandle oldest = null;
+        Iterator<NodeHandle> it = mHandles.values().iterator();
+        while (it.hasNext()) {
+            NodeHandle handle = it.next();
+            if (now - handle.mLastUsed >= IDLE_TIMEOUT_MS) {
+                it.remove();
+                expired.add(handle);
+            } else if (oldest == null || handle.mLastUsed < oldest.mLastUsed) {
+                oldest = handle;
+            }
+        }
+        if (mHandles.size() >= MAX_HANDLES && oldest != null) {
+            mHandles.remove(oldest.mFileName);
+            expired.add(oldest);
+        }
+        return expired;
+    }
+
+    private static boolean isStale(IOException e) {
+        if (e instanceof ClosedChannelException) {
+            // Evicted by another thread while we were using it
+            return true;
+        }
+        if (e.getCause() instanceof ErrnoException) {
+            final int errno = ((ErrnoException) e.getCause()).errno;
+            return errno == OsConstants.ENOENT || errno == OsConstants.ESTALE
+                    || errno == OsConstants.ENODEV;
+        }
+        return false;
+    }
+
+    private static boolean isKernelNode(String fileName) {
+        return fileName.startsWith("/sys/") || fileName.startsWith("/proc/");
+    }
+
+    private static int readFile(String fileName, ByteBuffer dst, long position)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.READ)) {
+            return channel.read(dst, position);
+        }
+    }
+
+    private static void writeFile(String fileName, ByteBuffer src) throws IOException {
+        // Keeps FileWriter semantics: created if missing, previous contents dropped
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The file may have just been created
+            NodeCapabilities.invalidate(fileName);
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+    }
+
+    private static final class NodeHandle {
+        final String mFileName;
+        long mLastUsed;
+
+        // Many nodes are either read-only or write-only, so each direction
+        // gets its own descriptor opened on first use
+        private FileChannel mReader;
+        private FileChannel mWriter;
+        private boolean mClosed;
+
+        NodeHandle(String fileName) {
+            mFileName = fileName;
+        }
+
+        synchronized int read(ByteBuffer dst, long position) throws IOException {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mReader == null) {
+                mReader = FileChannel.open(Paths.get(mFileName), StandardOpenOption.READ);
+            }
+            return mReader.read(dst, position);
+        }
+
+        synchronized void write(ByteBuffer src) throws IOException {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mWriter == null) {
+                mWriter = FileChannel.open(Paths.get(mFileName), StandardOpenOption.WRITE);
+            }
+            // Kernel attributes take the whole value per write from offset zero
+            long position = 0;
+            while (src.hasRemaining()) {
+                position += mWriter.write(src, position);
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            closeQuietly(mReader);
+            closeQuietly(mWriter);
+            mReader = null;
+            mWriter = null;
+        }
+
+        private static void closeQuietly(FileChannel channel) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignored, not much we can do anyway
+            }
+        }
+    }
+}
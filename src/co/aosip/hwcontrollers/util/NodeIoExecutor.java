@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs node I/O off the calling thread.
+ *
+ * A small, bounded pool of threads is shared by all nodes, but tasks for the
+ * same file run one at a time in submission order, so writes to a node are
+ * never reordered while I/O to different nodes proceeds in parallel.
+ */
+final class NodeIoExecutor {
+    private static final String TAG = "NodeIoExecutor";
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final NodeIoExecutor sInstance = new NodeIoExecutor();
+
+    private final ThreadPoolExecutor mExecutor;
+    private final HashMap<String, SerialQueue> mQueues = new HashMap<String, SerialQueue>();
+
+    private NodeIoExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "NodeIo-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static NodeIoExecutor getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Queues the given task behind any pending tasks for the same file
+     */
+    void execute(String fileName, Runnable task) {
+        synchronized (mQueues) {
+            SerialQueue queue = mQueues.get(fileName);
+            if (queue == null) {
+                queue = new SerialQueue(fileName);
+                mQueues.put(fileName, queue);
+            }
+            queue.mTasks.add(task);
+            if (!queue.mScheduled) {
+                queue.mScheduled = true;
+                mExecutor.execute(queue);
+            }
+        }
+    }
+
+    private final class SerialQueue implements Runnable {
+        final String mFileName;
+        final ArrayDeque<Runnable> mTasks = new ArrayDeque<Runnable>();
+        boolean mScheduled;
+
+        SerialQueue(String fileName) {
+            mFileName = fileName;
+        }
+
+        @Override
+        public void run() {
+            final Runnable task;
+            synchronized (mQueues) {
+                task = mTasks.poll();
+            }
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task for " + mFileName + " failed", e);
+            } finally {
+                // Run one task per turn so a busy node cannot starve the others
+                synchronized (mQueues) {
+                    if (mTasks.isEmpty()) {
+                        mScheduled = false;
+                        mQueues.remove(mFileName);
+                    } else {
+                        mExecutor.execute(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notifies listeners when the value of a node changes.
+ *
+ * Nodes on filesystems that report modifications are watched through a
+ * {@link WatchService} on their parent directory. Kernel nodes under /sys
+ * and /proc do not generate such events, and neither do filesystems without
+ * WatchService support, so those are polled instead. Polling starts at
+ * {@link #MIN_POLL_INTERVAL_MS} and backs off up to
+ * {@link #MAX_POLL_INTERVAL_MS} while the value stays the same; all polls
+ * share a single timer thread.
+ *
+ * Listeners are only called when the value read from the node differs from
+ * the previous one, on the executor they were registered with. Nodes are
+ * matched by their absolute, normalized path, so "a/../b" and "b" are the
+ * same node; listeners are told the name they registered with.
+ */
+public final class NodeWatcher {
+    private static final String TAG = "NodeWatcher";
+
+    public static final long MIN_POLL_INTERVAL_MS = 250;
+    public static final long MAX_POLL_INTERVAL_MS = 8000;
+
+    private static final NodeWatcher sInstance = new NodeWatcher();
+
+    public interface Listener {
+        /**
+         * Called when the value of a watched node changed
+         *
+         * @param fileName the node that changed
+         * @param value the new value, or null if the node can no longer be read
+         */
+        void onNodeChanged(String fileName, String value);
+    }
+
+    private final Object mLock = new Object();
+    private final HashMap<String, WatchedNode> mNodes = new HashMap<String, WatchedNode>();
+    private final HashMap<Path, WatchedDirectory> mDirectories =
+            new HashMap<Path, WatchedDirectory>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private WatchService mWatchService;
+    private boolean mWatchServiceUnavailable;
+
+    private NodeWatcher() {
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    public static NodeWatcher getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts delivering changes of the given node to the given listener.
+     * The value at registration time is the baseline and is not reported.
+     */
+    public void register(String fileName, Executor executor, Listener listener) {
+        final String path = normalize(fileName);
+        synchronized (mLock) {
+            WatchedNode node = mNodes.get(path);
+            if (node == null) {
+                node = new WatchedNode(fileName, path);
+                mNodes.put(path, node);
+                if (!watchLocked(node)) {
+                    node.mPollInterval = MIN_POLL_INTERVAL_MS;
+                }
+                scheduleCheckLocked(node, 0);
+            }
+            node.mListeners.add(new Registration(fileName, executor, listener));
+        }
+    }
+
+    /**
+     * Stops delivering changes of the given node to the given listener
+     */
+    public void unregister(String fileName, Listener listener) {
+        final String path = normalize(fileName);
+        synchronized (mLock) {
+            final WatchedNode node = mNodes.get(path);
+            if (node == null) {
+                return;
+            }
+            for (int i = node.mListeners.size() - 1; i >= 0; i--) {
+                if (node.mListeners.get(i).mListener == listener) {
+                    node.mListeners.remove(i);
+                }
+            }
+            if (!node.mListeners.isEmpty()) {
+                return;
+            }
+            mNodes.remove(path);
+            if (node.mPending != null) {
+                node.mPending.cancel(false);
+            }
+            if (node.mDirectory != null && --node.mDirectory.mNodeCount == 0) {
+                node.mDirectory.mKey.cancel();
+                mDirectories.remove(node.mDirectory.mPath);
+            }
+        }
+    }
+
+    /**
+     * Checks the given node now instead of waiting for its next poll,
+     * e.g. after an event that is known to change it
+     */
+    public void poke(String fileName) {
+        final String path = normalize(fileName);
+        synchronized (mLock) {
+            final WatchedNode node = mNodes.get(path);
+            if (node != null) {
+                if (node.mPollInterval > 0) {
+                    node.mPollInterval = MIN_POLL_INTERVAL_MS;
+                }
+                scheduleCheckLocked(node, 0);
+            }
+        }
+    }
+
+    /**
+     * @return the absolute, normalized form of the given path, which events
+     *         are matched against
+     */
+    private static String normalize(String fileName) {
+        try {
+            return Paths.get(fileName).toAbsolutePath().normalize().toString();
+        } catch (InvalidPathException e) {
+            // Can't be watched anyway, it is only polled
+            return fileName;
+        }
+    }
+
+    private boolean watchLocked(WatchedNode node) {
+        final String fileName = node.mFileName;
+        if (node.mPath.startsWith("/sys/") || node.mPath.startsWith("/proc/")
+                || mWatchServiceUnavailable) {
+            return false;
+        }
+        final Path directory = Paths.get(node.mPath).getParent();
+        if (directory == null) {
+            return false;
+        }
+
+        WatchedDirectory watched = mDirectories.get(directory);
+        if (watched == null) {
+            try {
+                if (mWatchService == null) {
+                    mWatchService = FileSystems.getDefault().newWatchService();
+                    startWatchThread(mWatchService);
+                }
+                final WatchKey key = directory.register(mWatchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                watched = new WatchedDirectory(directory, key);
+                mDirectories.put(directory, watched);
+            } catch (IOException | UnsupportedOperationException e) {
+                Log.w(TAG, "Cannot watch " + directory + ", polling " + fileName, e);
+                if (mWatchService == null) {
+                    mWatchServiceUnavailable = true;
+                }
+                return false;
+            }
+        }
+        watched.mNodeCount++;
+        node.mDirectory = watched;
+        return true;
+    }
+
+    private void startWatchThread(final WatchService watchService) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final WatchKey key;
+                    try {
+                        key = watchService.take();
+                    } catch (InterruptedException | ClosedWatchServiceException e) {
+                        return;
+                    }
+                    onWatchEvents(key);
+                }
+            }
+        }, TAG + "-events");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void onWatchEvents(WatchKey key) {
+        final Path directory = (Path) key.watchable();
+        synchronized (mLock) {
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were dropped, recheck everything in this directory
+                    for (WatchedNode node : mNodes.values()) {
+                        if (node.mDirectory != null && node.mDirectory.mPath.equals(directory)) {
+                            scheduleCheckLocked(node, 0);
+                        }
+                    }
+                    continue;
+                }
+                final String changed = directory.resolve((Path) event.context()).toString();
+                if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+                    // A pooled descriptor would keep reading the old file
+                    NodeHandlePool.getInstance().evict(changed);
+                    NodeCapabilities.invalidate(changed);
+                }
+                final WatchedNode node = mNodes.get(changed);
+                if (node != null) {
+                    scheduleCheckLocked(node, 0);
+                }
+            }
+        }
+        key.reset();
+    }
+
+    private void scheduleCheckLocked(final WatchedNode node, long delayMs) {
+        if (node.mPending != null) {
+            node.mPending.cancel(false);
+        }
+        node.mPending = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(node);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(WatchedNode node) {
+        final String value = FileUtils.readOneLine(node.mFileName);
+        final Registration[] listeners;
+        synchronized (mLock) {
+            if (mNodes.get(node.mPath) != node) {
+                // Unregistered while we were reading
+                return;
+            }
+            final boolean changed = node.mInitialized && !Objects.equals(value, node.mValue);
+            node.mValue = value;
+            node.mInitialized = true;
+            if (node.mPollInterval > 0) {
+                node.mPollInterval = changed ? MIN_POLL_INTERVAL_MS
+                        : Math.min(node.mPollInterval * 2, MAX_POLL_INTERVAL_MS);
+                scheduleCheckLocked(node, node.mPollInterval);
+            } else {
+                node.mPending = null;
+            }
+            if (!changed) {
+                return;
+            }
+            listeners = node.mListeners.toArray(new Registration[node.mListeners.size()]);
+        }
+
+        // Anything cached about the node is out of date now
+        CachedNode.invalidatePath(node.mFileName);
+        NodeCapabilities.invalidate(node.mFileName);
+
+        for (final Registration registration : listeners) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onNodeChanged(registration.mFileName, value);
+                }
+            });
+        }
+    }
+
+    private static final class Registration {
+        final String mFileName;
+        final Executor mExecutor;
+        final Listener mListener;
+
+        Registration(String fileName, Executor executor, Listener listener) {
+            mFileName = fileName;
+            mExecutor = executor;
+            mListener = listener;
+        }
+    }
+
+    private static final class WatchedDirectory {
+        final Path mPath;
+        final WatchKey mKey;
+        int mNodeCount;
+
+        WatchedDirectory(Path path, WatchKey key) {
+            mPath = path;
+            mKey = key;
+        }
+    }
+
+    private static final class WatchedNode {
+        // As first registered, and the key in mNodes
+        final String mFileName;
+        final String mPath;
+        final ArrayList<Registration> mListeners = new ArrayList<Registration>();
+        WatchedDirectory mDirectory;
+        ScheduledFuture<?> mPending;
+        // 0 when driven by the WatchService, the current interval when polled
+        long mPollInterval;
+        boolean mInitialized;
+        String mValue;
+
+        WatchedNode(String fileName, String path) {
+            mFileName = fileName;
+            mPath = path;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 CypherOS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aosip.hwcontrollers.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Applies a group of node writes as one unit.
+ *
+ * Writes are applied in the order they were added, over the pooled node
+ * handles. The previous value of every node is read before anything is
+ * written, and if any write fails the already applied ones are restored in
+ * reverse order. Nodes that cannot be read back, such as write-only nodes,
+ * are not restored.
+ *
+ * <pre class="prettyprint">
+ *     SysfsTransaction transaction = new SysfsTransaction()
+ *             .write(GESTURE_KEYCODE_NODE, "59")
+ *             .write(GESTURE_ENABLE_NODE, "1");
+ *     if (!transaction.commit()) {
+ *         // Nothing was changed, except possibly write-only nodes
+ *     }
+ * </pre>
+ */
+public final class SysfsTransaction {
+    private static final String TAG = "SysfsTransaction";
+
+    private final ArrayList<String> mFileNames = new ArrayList<String>();
+    private final ArrayList<String> mValues = new ArrayList<String>();
+    private long[] mLatencyNanos;
+    private int mFailedIndex = -1;
+    private boolean mCommitted;
+
+    /**
+     * Adds a write of the given value into the given file
+     *
+     * @return this transaction
+     */
+    public SysfsTransaction write(String fileName, String value) {
+        if (mCommitted) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        mFileNames.add(fileName);
+        mValues.add(value);
+        return this;
+    }
+
+    /**
+     * @return the number of writes in this transaction
+     */
+    public int size() {
+        return mFileNames.size();
+    }
+
+    /**
+     * Applies all writes, rolling back the applied ones if any fails.
+     * A transaction can only be committed once.
+     *
+     * @return true if every write succeeded, false if the transaction was rolled back
+     */
+    public boolean commit() {
+        if (mCommitted) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        mCommitted = true;
+
+        final int size = mFileNames.size();
+        final String[] previous = new String[size];
+        for (int i = 0; i < size; i++) {
+            previous[i] = FileUtils.readOneLine(mFileNames.get(i));
+        }
+
+        mLatencyNanos = new long[size];
+        for (int i = 0; i < size; i++) {
+            final String fileName = mFileNames.get(i);
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final boolean ok = FileUtils.writeLine(fileName, mValues.get(i));
+            mLatencyNanos[i] = SystemClock.elapsedRealtimeNanos() - start;
+            CachedNode.invalidatePath(fileName);
+            if (!ok) {
+                mFailedIndex = i;
+                rollback(i, previous);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the write that failed, or -1 if none did
+     */
+    public int getFailedIndex() {
+        return mFailedIndex;
+    }
+
+    /**
+     * Get how long the given write took, in nanoseconds. Writes that were
+     * not attempted because an earlier one failed report 0.
+     */
+    public long getLatencyNanos(int index) {
+        if (mLatencyNanos == null) {
+            throw new IllegalStateException("Transaction not committed");
+        }
+        return mLatencyNanos[index];
+    }
+
+    private void rollback(int failedIndex, String[] previous) {
+        for (int i = failedIndex - 1; i >= 0; i--) {
+            final String fileName = mFileNames.get(i);
+            if (previous[i] == null) {
+                Log.w(TAG, "Cannot restore " + fileName + ", previous value unknown");
+                continue;
+            }
+            if (!FileUtils.writeLine(fileName, previous[i])) {
+                Log.e(TAG, "Failed to restore " + fileName);
+            }
+        }
+    }
+}